@@ -0,0 +1,219 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.mapdisplay.AbstractMapDisplay;
+import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MarkerManager;
+import de.fhpotsdam.unfolding.marker.MultiMarker;
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PShape;
+import processing.opengl.PGraphicsOpenGL;
+
+/** Colors the countries by a per-country value, such as life expectancy
+  * Values keyed by country id are hash-joined onto the country polygons.
+  * Each polygon is turned into a PShape once per simplification tier of
+  * CountryGeometry, in projected zoom 0 coordinates, and drawn through the
+  * current map transform; a new set of values only changes the fills, which
+  * the OpenGL renderer updates in its retained vertex buffers.
+  * @author: Yufei Hu
+  * */
+public class ChoroplethLayer extends MarkerManager<Marker> {
+
+	// Fill of the lowest and highest values, and of countries without a value
+	private int lowColor = 0x80FFF5EB;
+	private int highColor = 0xC07F2704;
+	private int missingColor = 0;
+
+	private final CountryGeometry geometry;
+
+	// Country index by id, the build side of the join
+	private final HashMap<String, Integer> countryIndex = new HashMap<String, Integer>();
+
+	// Fill of every country
+	private final int[] colors;
+	private int colorVersion = 0;
+
+	// Per tier, the last one being the full geometry: all rings as one group
+	// shape, each ring shape and the country it belongs to, and the color
+	// version its fills show; built the first time the tier is drawn
+	private final PShape[] tierShapes;
+	private final List<List<PShape>> tierRings;
+	private final List<List<Integer>> tierOwners;
+	private final int[] tierColorVersion;
+
+	public ChoroplethLayer(CountryGeometry geometry) {
+		super();
+		setMarkers(new ArrayList<Marker>());
+		this.geometry = geometry;
+		for (int i = 0; i < geometry.size(); i++) {
+			if (geometry.getId(i) != null) {
+				countryIndex.put(geometry.getId(i), i);
+			}
+		}
+		colors = new int[geometry.size()];
+		int numTiers = CountryGeometry.TIER_MAX_ZOOM.length + 1;
+		tierShapes = new PShape[numTiers];
+		tierRings = new ArrayList<List<PShape>>();
+		tierOwners = new ArrayList<List<Integer>>();
+		for (int t = 0; t < numTiers; t++) {
+			tierRings.add(null);
+			tierOwners.add(null);
+		}
+		tierColorVersion = new int[numTiers];
+	}
+
+	/** Sets the fills of the lowest and highest values and of countries without one */
+	public void setColors(int low, int high, int missing) {
+		lowColor = low;
+		highColor = high;
+		missingColor = missing;
+	}
+
+	/** Colors the countries by the given values, keyed by country id
+	  * (e.g. "AFG"), scaled between the smallest and largest joined value.
+	  * Countries without a value get the missing color.
+	  * @return the number of countries that got a value
+	  * */
+	public int setValues(Map<String, Float> values) {
+		float[] joined = new float[colors.length];
+		boolean[] present = new boolean[colors.length];
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		int matched = 0;
+		// probe side: one lookup per value
+		for (Map.Entry<String, Float> entry : values.entrySet()) {
+			Integer country = countryIndex.get(entry.getKey());
+			if (country == null || entry.getValue() == null || entry.getValue().isNaN()) {
+				continue;
+			}
+			float value = entry.getValue();
+			joined[country] = value;
+			present[country] = true;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			matched++;
+		}
+		for (int i = 0; i < colors.length; i++) {
+			if (!present[i]) {
+				colors[i] = missingColor;
+			} else {
+				float amount = max > min ? (joined[i] - min) / (max - min) : 1;
+				colors[i] = PApplet.lerpColor(lowColor, highColor, amount, PConstants.RGB);
+			}
+		}
+		colorVersion++;
+		return matched;
+	}
+
+	/** Counts the land quakes per country, keyed by country id */
+	public static HashMap<String, Float> countQuakes(List<Marker> quakeMarkers, CountryGeometry geometry) {
+		HashMap<String, String> idByName = new HashMap<String, String>();
+		for (int i = 0; i < geometry.size(); i++) {
+			idByName.put(geometry.getName(i), geometry.getId(i));
+		}
+		HashMap<String, Float> counts = new HashMap<String, Float>();
+		for (Marker marker : quakeMarkers) {
+			if (marker instanceof LandQuakeMarker) {
+				String id = idByName.get(((LandQuakeMarker)marker).getCountry());
+				if (id != null) {
+					Float count = counts.get(id);
+					counts.put(id, count == null ? 1f : count + 1);
+				}
+			}
+		}
+		return counts;
+	}
+
+	/** Draws the country shapes of the zoom level's tier through the current
+	  * map transform, updating their fills first if the values changed
+	  * */
+	@Override
+	public void draw() {
+		if (!bEnableDrawing) {
+			return;
+		}
+		AbstractMapDisplay display = map.mapDisplay;
+		PGraphics pg = display.getOuterPG();
+		int tier = CountryGeometry.tierForZoom(map.getZoomLevel());
+		if (tier < 0) {
+			tier = CountryGeometry.TIER_MAX_ZOOM.length;
+		}
+		if (tierShapes[tier] == null) {
+			createShapes(pg, display, tier);
+		}
+		List<PShape> rings = tierRings.get(tier);
+		List<Integer> owners = tierOwners.get(tier);
+		boolean retained = pg instanceof PGraphicsOpenGL;
+		if (retained && tierColorVersion[tier] != colorVersion) {
+			for (int r = 0; r < rings.size(); r++) {
+				rings.get(r).setFill(colors[owners.get(r)]);
+			}
+			tierColorVersion[tier] = colorVersion;
+		}
+
+		float[] m = MarkerProjectionCache.innerToObject(display);
+		pg.pushMatrix();
+		pg.applyMatrix(m[0], m[1], m[2], m[3], m[4], m[5]);
+		if (retained) {
+			pg.shape(tierShapes[tier]);
+		} else {
+			// Java2D shapes cannot change their fill, so their style is off
+			// and each ring is drawn with the current fill instead
+			pg.pushStyle();
+			pg.noStroke();
+			for (int r = 0; r < rings.size(); r++) {
+				pg.fill(colors[owners.get(r)]);
+				pg.shape(rings.get(r));
+			}
+			pg.popStyle();
+		}
+		pg.popMatrix();
+	}
+
+	/** Tessellates the rings of a tier into shapes, in projected zoom 0 coordinates */
+	private void createShapes(PGraphics pg, AbstractMapDisplay display, int tier) {
+		int zoom = tier < CountryGeometry.TIER_MAX_ZOOM.length ? CountryGeometry.TIER_MAX_ZOOM[tier] : Integer.MAX_VALUE;
+		List<Marker> countries = geometry.getMarkers(zoom);
+		PShape group = pg.createShape(PConstants.GROUP);
+		List<PShape> rings = new ArrayList<PShape>();
+		List<Integer> owners = new ArrayList<Integer>();
+		for (int c = 0; c < countries.size(); c++) {
+			Marker country = countries.get(c);
+			List<Marker> parts = new ArrayList<Marker>();
+			if (country instanceof MultiMarker) {
+				parts.addAll(((MultiMarker)country).getMarkers());
+			} else {
+				parts.add(country);
+			}
+			for (Marker part : parts) {
+				PShape ring = pg.createShape();
+				ring.beginShape();
+				ring.noStroke();
+				ring.fill(colors[c]);
+				for (Location location : ((AbstractShapeMarker)part).getLocations()) {
+					float[] inner = display.getInnerObjectFromLocation(location);
+					ring.vertex(inner[0], inner[1]);
+				}
+				ring.endShape(PConstants.CLOSE);
+				if (!(pg instanceof PGraphicsOpenGL)) {
+					ring.disableStyle();
+				}
+				group.addChild(ring);
+				rings.add(ring);
+				owners.add(c);
+			}
+		}
+		tierShapes[tier] = group;
+		tierRings.set(tier, rings);
+		tierOwners.set(tier, owners);
+		tierColorVersion[tier] = colorVersion;
+	}
+}
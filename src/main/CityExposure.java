@@ -0,0 +1,242 @@
+package main;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.utils.GeoUtils;
+
+/** Batch earthquake exposure for every city at once
+  * For each city this finds the quakes whose threat circle contains it, their
+  * count, maximum and average magnitude, and the nearest quake overall.
+  * The city x quake matrix is split by city ranges over a fork-join pool;
+  * each task accumulates locally and writes only its own cities' slots.
+  * Cities can be added later as a longer list that starts with the cities
+  * computed so far, and then only the added cities are scanned.
+  * @author: Yufei Hu
+  * */
+public class CityExposure {
+
+	// Number of cities a single fork-join task handles without splitting
+	private static final int LEAF_SIZE = 256;
+
+	private List<Marker> cityMarkers;
+	private final List<Marker> quakeMarkers;
+
+	// Number of cities computed so far, the first ones of cityMarkers
+	private int numCities;
+
+	// Quake unit vectors, threat cosines and magnitudes as flat arrays
+	private GreatCircleKernel quakeKernel;
+	private double[] quakeCosine;
+	private float[] quakeMagnitude;
+
+	// Per city results
+	private int[] count;
+	private float[] maxMagnitude;
+	private float[] magnitudeSum;
+	private int[] nearest;
+	private double[] nearestDot;
+
+	// Threatening quake indices of city i are threats[offsets[i]] to threats[offsets[i + 1] - 1]
+	private int[] offsets;
+	private int[] threats;
+
+	public CityExposure(List<Marker> cityMarkers, List<Marker> quakeMarkers) {
+		this.cityMarkers = cityMarkers;
+		this.quakeMarkers = quakeMarkers;
+	}
+
+	/** Recomputes the exposure of all cities on the common fork-join pool */
+	public void compute() {
+		compute(ForkJoinPool.commonPool());
+	}
+
+	/** Recomputes the exposure of all cities on the given pool */
+	public void compute(ForkJoinPool pool) {
+		int numQuakes = quakeMarkers.size();
+		quakeKernel = new GreatCircleKernel(quakeMarkers);
+		quakeCosine = new double[numQuakes];
+		quakeMagnitude = new float[numQuakes];
+		for (int q = 0; q < numQuakes; q++) {
+			EarthquakeMarker quake = (EarthquakeMarker)quakeMarkers.get(q);
+			quakeCosine[q] = quake.threatCosine();
+			quakeMagnitude[q] = quake.getMagnitude();
+		}
+
+		count = new int[0];
+		maxMagnitude = new float[0];
+		magnitudeSum = new float[0];
+		nearest = new int[0];
+		nearestDot = new double[0];
+		offsets = new int[1];
+		threats = new int[0];
+		numCities = 0;
+		computeCities(pool, cityMarkers.size());
+	}
+
+	/** Extends the exposure on the common fork-join pool to a longer city
+	  * list, of which the cities computed so far are a prefix
+	  * */
+	public void extend(List<Marker> cityMarkers) {
+		extend(cityMarkers, ForkJoinPool.commonPool());
+	}
+
+	/** Extends the exposure on the given pool to a longer city list, of
+	  * which the cities computed so far are a prefix. Only the new cities
+	  * are scanned; a list no longer than the computed prefix changes nothing.
+	  * */
+	public void extend(List<Marker> cityMarkers, ForkJoinPool pool) {
+		if (cityMarkers.size() <= numCities) {
+			return;
+		}
+		this.cityMarkers = cityMarkers;
+		computeCities(pool, cityMarkers.size());
+	}
+
+	/** Number of cities the exposure covers */
+	public int size() {
+		return numCities;
+	}
+
+	/** Computes cities numCities to total - 1, appending their threat lists */
+	private void computeCities(ForkJoinPool pool, int total) {
+		int from = numCities;
+		count = Arrays.copyOf(count, total);
+		maxMagnitude = Arrays.copyOf(maxMagnitude, total);
+		magnitudeSum = Arrays.copyOf(magnitudeSum, total);
+		nearest = Arrays.copyOf(nearest, total);
+		nearestDot = Arrays.copyOf(nearestDot, total);
+		offsets = Arrays.copyOf(offsets, total + 1);
+
+		// first pass gathers the statistics and sizes the threat lists
+		pool.invoke(new ExposureTask(from, total, false));
+		for (int c = from; c < total; c++) {
+			offsets[c + 1] = offsets[c] + count[c];
+		}
+		// second pass fills every city's own slice of the threat lists
+		threats = Arrays.copyOf(threats, offsets[total]);
+		pool.invoke(new ExposureTask(from, total, true));
+		numCities = total;
+	}
+
+	/** Number of quakes threatening the city */
+	public int getCount(int city) {
+		return count[city];
+	}
+
+	/** Largest magnitude among the threatening quakes, 0 if there are none */
+	public float getMaxMagnitude(int city) {
+		return maxMagnitude[city];
+	}
+
+	/** Average magnitude of the threatening quakes, 0 if there are none */
+	public float getAverageMagnitude(int city) {
+		return count[city] == 0 ? 0 : magnitudeSum[city] / count[city];
+	}
+
+	/** The quake closest to the city, threatening or not, or null without quakes */
+	public EarthquakeMarker getNearestQuake(int city) {
+		return nearest[city] < 0 ? null : (EarthquakeMarker)quakeMarkers.get(nearest[city]);
+	}
+
+	/** Great-circle distance in km to the nearest quake */
+	public double getNearestDistance(int city) {
+		return Math.acos(Math.max(-1, Math.min(1, nearestDot[city]))) * GeoUtils.EARTH_RADIUS_KM;
+	}
+
+	/** Number of entries of the city's threat list */
+	public int getThreatCount(int city) {
+		return offsets[city + 1] - offsets[city];
+	}
+
+	/** The k-th quake threatening the city, in the order of the quake list */
+	public EarthquakeMarker getThreat(int city, int k) {
+		return (EarthquakeMarker)quakeMarkers.get(threats[offsets[city] + k]);
+	}
+
+	/** Scans a range of cities against all quakes */
+	private class ExposureTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final boolean fill;
+
+		ExposureTask(int from, int to, boolean fill) {
+			this.from = from;
+			this.to = to;
+			this.fill = fill;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > LEAF_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ExposureTask(from, mid, fill), new ExposureTask(mid, to, fill));
+				return;
+			}
+			// dot products of one city with all quakes, reused across the range
+			double[] dots = new double[quakeKernel.size()];
+			for (int c = from; c < to; c++) {
+				quakeKernel.dot((CommonMarker)cityMarkers.get(c), dots);
+				if (fill) {
+					fillThreats(c, dots);
+				} else {
+					accumulate(c, dots);
+				}
+			}
+		}
+
+		private void accumulate(int c, double[] dots) {
+			CommonMarker city = (CommonMarker)cityMarkers.get(c);
+			int cityCount = 0;
+			// magnitudes can be negative, so the maximum starts below them all
+			float cityMax = Float.NEGATIVE_INFINITY;
+			float citySum = 0;
+			int cityNearest = -1;
+			double cityNearestDot = -2;
+			for (int q = 0; q < dots.length; q++) {
+				double dot = dots[q];
+				if (dot > cityNearestDot) {
+					cityNearestDot = dot;
+					cityNearest = q;
+				}
+				if (isThreat(city, q, dot)) {
+					cityCount++;
+					citySum += quakeMagnitude[q];
+					cityMax = Math.max(cityMax, quakeMagnitude[q]);
+				}
+			}
+			count[c] = cityCount;
+			maxMagnitude[c] = cityCount == 0 ? 0 : cityMax;
+			magnitudeSum[c] = citySum;
+			nearest[c] = cityNearest;
+			nearestDot[c] = cityNearestDot;
+		}
+
+		private void fillThreats(int c, double[] dots) {
+			CommonMarker city = (CommonMarker)cityMarkers.get(c);
+			int k = offsets[c];
+			for (int q = 0; q < dots.length && k < offsets[c + 1]; q++) {
+				if (isThreat(city, q, dots[q])) {
+					threats[k++] = q;
+				}
+			}
+		}
+
+		/** Same decision as EarthquakeCityMap.isInsideThreatCircle, from the flat arrays */
+		private boolean isThreat(CommonMarker city, int q, double dot) {
+			if (dot < quakeCosine[q] - EarthquakeCityMap.CAP_MARGIN) {
+				return false;
+			}
+			if (dot > quakeCosine[q] + EarthquakeCityMap.CAP_MARGIN) {
+				return true;
+			}
+			return EarthquakeCityMap.isInsideThreatCircle(city, (EarthquakeMarker)quakeMarkers.get(q));
+		}
+	}
+}
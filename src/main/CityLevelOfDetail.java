@@ -0,0 +1,64 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.Marker;
+import parsing.Gazetteer;
+
+/** Shows the places of a gazetteer as city markers by zoom level
+  * Each zoom tier has a smallest population, so zoomed out only the major
+  * cities exist as CityMarkers. The gazetteer is ordered by population, so
+  * the cities of a tier are a prefix of it, and every marker is created
+  * once, when a tier first needs it, and then shared by the closer tiers.
+  * @author: Yufei Hu
+  * */
+public class CityLevelOfDetail {
+
+	// Highest zoom level of each tier
+	public static final int[] TIER_MAX_ZOOM = {2, 4, 6};
+
+	// Smallest population in millions shown by each tier, the last one for
+	// zoom levels above the last tier
+	public static final float[] TIER_MIN_POPULATION = {1f, 0.25f, 0.05f, 0.01f};
+
+	private final Gazetteer gazetteer;
+
+	// Markers created so far, by gazetteer index
+	private final CityMarker[] markers;
+
+	public CityLevelOfDetail(Gazetteer gazetteer) {
+		this.gazetteer = gazetteer;
+		markers = new CityMarker[gazetteer.countAtLeast(TIER_MIN_POPULATION[TIER_MAX_ZOOM.length])];
+	}
+
+	/** Returns the tier to use for a zoom level, TIER_MAX_ZOOM.length above the last */
+	public static int tierForZoom(int zoomLevel) {
+		for (int t = 0; t < TIER_MAX_ZOOM.length; t++) {
+			if (zoomLevel <= TIER_MAX_ZOOM[t]) {
+				return t;
+			}
+		}
+		return TIER_MAX_ZOOM.length;
+	}
+
+	/** The city markers of a tier, largest population first */
+	public List<Marker> getMarkers(int tier) {
+		int count = Math.min(markers.length, gazetteer.countAtLeast(TIER_MIN_POPULATION[tier]));
+		List<Marker> cities = new ArrayList<Marker>(count);
+		for (int i = 0; i < count; i++) {
+			if (markers[i] == null) {
+				markers[i] = new CityMarker(new Location(gazetteer.getLat(i), gazetteer.getLon(i)),
+						gazetteer.getName(i), gazetteer.getCountry(i), gazetteer.getPopulation(i));
+			}
+			cities.add(markers[i]);
+		}
+		return cities;
+	}
+
+	/** Number of places in the gazetteer */
+	public int size() {
+		return gazetteer.size();
+	}
+}
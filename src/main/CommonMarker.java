@@ -1,46 +1,166 @@
-package main;
-
-import de.fhpotsdam.unfolding.geo.Location;
-import de.fhpotsdam.unfolding.marker.SimplePointMarker;
-
-import processing.core.PGraphics;
-
-/** Implements a common marker for cities and earthquakes on an earthquake map
-  * @author: Yufei Hu
-  * */
-public abstract class CommonMarker extends SimplePointMarker {
-
-	// Records whether this marker has been clicked (most recently)
-	protected boolean clicked = false;
-	
-	public CommonMarker(Location location) {
-		super(location);
-	}
-	
-	public CommonMarker(Location location, java.util.HashMap<java.lang.String, java.lang.Object> properties) {
-		super(location, properties);
-	}
-	
-	/** Getter method for clicked field */
-	public boolean getClicked() {
-		return clicked;
-	}
-	
-	/** Setter method for clicked field */
-	public void setClicked(boolean state) {
-		clicked = state;
-	}
-	
-	/** Common piece of drawing method for markers */
-	public void draw(PGraphics pg, float x, float y) {
-		if (!hidden) {
-			drawMarker(pg, x, y);
-			if (selected) {
-				showTitle(pg, x, y);
-			}
-		}
-	}
-	
-	public abstract void drawMarker(PGraphics pg, float x, float y);
-	public abstract void showTitle(PGraphics pg, float x, float y);
-}
+package main;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.SimplePointMarker;
+
+import processing.core.PFont;
+import processing.core.PGraphics;
+
+/** Implements a common marker for cities and earthquakes on an earthquake map
+  * @author: Yufei Hu
+  * */
+public abstract class CommonMarker extends SimplePointMarker {
+
+	// Records whether this marker has been clicked (most recently)
+	protected boolean clicked = false;
+	
+	// Index of this marker in its marker list
+	protected int index = -1;
+	
+	// The shared projection cache holding this marker's position, if any
+	protected MarkerProjectionCache projection;
+	
+	// The layer holding this marker's visibility, if any
+	protected MarkerLayer layer;
+	
+	// Unit vector of the location on the sphere, for great-circle tests without trigonometry
+	protected double unitX;
+	protected double unitY;
+	protected double unitZ;
+	
+	// Width of the title label, cached for the font and size it was measured with
+	private float labelWidth;
+	private float labelWidthSize = -1;
+	private PFont labelWidthFont;
+	
+	public CommonMarker(Location location) {
+		super(location);
+		computeUnitVector();
+	}
+	
+	public CommonMarker(Location location, java.util.HashMap<java.lang.String, java.lang.Object> properties) {
+		super(location, properties);
+		computeUnitVector();
+	}
+	
+	private void computeUnitVector() {
+		double lat = Math.toRadians(location.getLat());
+		double lon = Math.toRadians(location.getLon());
+		unitX = Math.cos(lat) * Math.cos(lon);
+		unitY = Math.cos(lat) * Math.sin(lon);
+		unitZ = Math.sin(lat);
+	}
+	
+	/** Dot product of the unit vectors of two markers, the cosine of their central angle */
+	public double dot(CommonMarker other) {
+		return unitX * other.unitX + unitY * other.unitY + unitZ * other.unitZ;
+	}
+	
+	/** Getter method for clicked field */
+	public boolean getClicked() {
+		return clicked;
+	}
+	
+	/** Setter method for clicked field */
+	public void setClicked(boolean state) {
+		clicked = state;
+	}
+	
+	/** Attaches this marker to a projection cache at the given index */
+	public void setProjection(MarkerProjectionCache projection, int index) {
+		this.projection = projection;
+		this.index = index;
+	}
+	
+	/** Attaches this marker to a layer that tracks its visibility */
+	public void setLayer(MarkerLayer layer, int index) {
+		this.layer = layer;
+		this.index = index;
+	}
+	
+	/** Index of this marker in its marker list */
+	public int getIndex() {
+		return index;
+	}
+	
+	@Override
+	public boolean isHidden() {
+		if (layer == null) {
+			return hidden;
+		}
+		return !layer.isVisible(index);
+	}
+	
+	@Override
+	public void setHidden(boolean state) {
+		if (layer == null) {
+			hidden = state;
+		} else {
+			layer.setVisible(index, !state);
+		}
+	}
+	
+	/** Draws the marker at its cached position instead of re-projecting it */
+	@Override
+	public void draw(UnfoldingMap map) {
+		if (projection == null) {
+			super.draw(map);
+			return;
+		}
+		projection.validate(map);
+		draw(map.mapDisplay.getOuterPG(), projection.getObjectX(index), projection.getObjectY(index));
+	}
+	
+	/** Hit-tests against the cached screen position */
+	@Override
+	public boolean isInside(UnfoldingMap map, float checkX, float checkY) {
+		if (projection == null) {
+			return super.isInside(map, checkX, checkY);
+		}
+		return isInside(checkX, checkY, getScreenX(map), getScreenY(map));
+	}
+	
+	/** Screen x coordinate of this marker */
+	public float getScreenX(UnfoldingMap map) {
+		if (projection == null) {
+			return getScreenPosition(map).x;
+		}
+		projection.validate(map);
+		return projection.getScreenX(index);
+	}
+	
+	/** Screen y coordinate of this marker */
+	public float getScreenY(UnfoldingMap map) {
+		if (projection == null) {
+			return getScreenPosition(map).y;
+		}
+		projection.validate(map);
+		return projection.getScreenY(index);
+	}
+	
+	/** Common piece of drawing method for markers */
+	public void draw(PGraphics pg, float x, float y) {
+		if (!isHidden()) {
+			drawMarker(pg, x, y);
+			if (selected) {
+				showTitle(pg, x, y);
+			}
+		}
+	}
+	
+	/** Returns pg.textWidth(label), measuring only when the font or size changed.
+	  * Each marker has a single label, so the label itself is not part of the key.
+	  * */
+	protected float labelWidth(PGraphics pg, String label) {
+		if (pg.textSize != labelWidthSize || pg.textFont != labelWidthFont) {
+			labelWidth = pg.textWidth(label);
+			labelWidthSize = pg.textSize;
+			labelWidthFont = pg.textFont;
+		}
+		return labelWidth;
+	}
+	
+	public abstract void drawMarker(PGraphics pg, float x, float y);
+	public abstract void showTitle(PGraphics pg, float x, float y);
+}
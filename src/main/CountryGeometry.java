@@ -0,0 +1,344 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MultiMarker;
+import de.fhpotsdam.unfolding.marker.SimplePolygonMarker;
+
+/** Multi-resolution store of the country polygons
+  * Every outer ring is kept at full resolution plus one Douglas-Peucker
+  * simplified copy per zoom tier. Low zoom rendering and coarse hit-testing
+  * use the simplified rings, exact lookups only fall back to the full ring
+  * when the point is too close to the simplified outline to decide.
+  * @author: Yufei Hu
+  * */
+public class CountryGeometry {
+
+	// Highest zoom level each simplified tier is used for; above the last one the full geometry is used
+	public static final int[] TIER_MAX_ZOOM = {2, 4, 6};
+
+	// The tier used to pre-classify points before an exact test
+	private static final int CLASSIFY_TIER = 1;
+
+	// Degrees per pixel at zoom 0 for 256 pixel tiles
+	private static final float DEGREES_PER_PIXEL = 360f / 256;
+
+	// The original country markers, in the order they were loaded
+	private final List<Marker> countries;
+
+	// Full resolution outer rings, as lat and lon arrays, and the country each belongs to
+	private final float[][] ringLat;
+	private final float[][] ringLon;
+	private final int[] ringCountry;
+
+	// Bounding box of each ring
+	private final float[] minLat;
+	private final float[] maxLat;
+	private final float[] minLon;
+	private final float[] maxLon;
+
+	// Simplified rings per tier: [tier][ring][vertex], null where simplification would collapse the ring
+	private final float[][][] tierLat;
+	private final float[][][] tierLon;
+	private final float[] tierTolerance;
+
+	// Country markers built from the simplified rings, one list per tier
+	private final List<List<Marker>> tierMarkers;
+
+	public CountryGeometry(List<Marker> countries) {
+		this.countries = countries;
+
+		List<List<Location>> rings = new ArrayList<List<Location>>();
+		List<Integer> owners = new ArrayList<Integer>();
+		for (int c = 0; c < countries.size(); c++) {
+			Marker country = countries.get(c);
+			if (country.getClass() == MultiMarker.class) {
+				for (Marker marker : ((MultiMarker)country).getMarkers()) {
+					rings.add(((AbstractShapeMarker)marker).getLocations());
+					owners.add(c);
+				}
+			} else {
+				rings.add(((AbstractShapeMarker)country).getLocations());
+				owners.add(c);
+			}
+		}
+
+		int numRings = rings.size();
+		ringLat = new float[numRings][];
+		ringLon = new float[numRings][];
+		ringCountry = new int[numRings];
+		minLat = new float[numRings];
+		maxLat = new float[numRings];
+		minLon = new float[numRings];
+		maxLon = new float[numRings];
+		for (int r = 0; r < numRings; r++) {
+			List<Location> ring = rings.get(r);
+			ringCountry[r] = owners.get(r);
+			ringLat[r] = new float[ring.size()];
+			ringLon[r] = new float[ring.size()];
+			minLat[r] = minLon[r] = Float.MAX_VALUE;
+			maxLat[r] = maxLon[r] = -Float.MAX_VALUE;
+			for (int i = 0; i < ring.size(); i++) {
+				float lat = ring.get(i).getLat();
+				float lon = ring.get(i).getLon();
+				ringLat[r][i] = lat;
+				ringLon[r][i] = lon;
+				minLat[r] = Math.min(minLat[r], lat);
+				maxLat[r] = Math.max(maxLat[r], lat);
+				minLon[r] = Math.min(minLon[r], lon);
+				maxLon[r] = Math.max(maxLon[r], lon);
+			}
+		}
+
+		int numTiers = TIER_MAX_ZOOM.length;
+		tierLat = new float[numTiers][numRings][];
+		tierLon = new float[numTiers][numRings][];
+		tierTolerance = new float[numTiers];
+		tierMarkers = new ArrayList<List<Marker>>();
+		for (int t = 0; t < numTiers; t++) {
+			// about one pixel at the highest zoom level of the tier
+			tierTolerance[t] = DEGREES_PER_PIXEL / (1 << TIER_MAX_ZOOM[t]);
+			for (int r = 0; r < numRings; r++) {
+				simplify(t, r);
+			}
+			tierMarkers.add(createMarkers(t));
+		}
+	}
+
+	/** Returns the tier to use for a zoom level, or -1 for full geometry */
+	public static int tierForZoom(int zoomLevel) {
+		for (int t = 0; t < TIER_MAX_ZOOM.length; t++) {
+			if (zoomLevel <= TIER_MAX_ZOOM[t]) {
+				return t;
+			}
+		}
+		return -1;
+	}
+
+	/** Country markers to render at the given zoom level */
+	public List<Marker> getMarkers(int zoomLevel) {
+		int tier = tierForZoom(zoomLevel);
+		if (tier < 0) {
+			return countries;
+		}
+		return tierMarkers.get(tier);
+	}
+
+	/** Number of countries */
+	public int size() {
+		return countries.size();
+	}
+
+	/** The original, full resolution country marker */
+	public Marker getCountry(int index) {
+		return countries.get(index);
+	}
+
+	/** The id of a country, e.g. "AFG" */
+	public String getId(int index) {
+		return countries.get(index).getId();
+	}
+
+	/** The "name" property of a country */
+	public String getName(int index) {
+		return (String)countries.get(index).getProperty("name");
+	}
+
+	/** Finds the country containing the location using the full geometry.
+	  * The simplified outline of the classification tier decides every point
+	  * that lies clearly inside or outside it; only points within the
+	  * simplification tolerance of its border are tested against the full ring.
+	  * @return the index of the first matching country, or -1 for the ocean
+	  * */
+	public int locate(float lat, float lon) {
+		for (int r = 0; r < ringLat.length; r++) {
+			if (!inBounds(r, lat, lon)) {
+				continue;
+			}
+			float[] coarseLat = tierLat[CLASSIFY_TIER][r];
+			boolean inside;
+			if (coarseLat == null) {
+				inside = isInside(lat, lon, ringLat[r], ringLon[r]);
+			} else {
+				int coarse = classify(lat, lon, coarseLat, tierLon[CLASSIFY_TIER][r], tierTolerance[CLASSIFY_TIER]);
+				inside = coarse == 0 ? isInside(lat, lon, ringLat[r], ringLon[r]) : coarse > 0;
+			}
+			if (inside) {
+				return ringCountry[r];
+			}
+		}
+		return -1;
+	}
+
+	/** Finds the country containing the location using only the simplified
+	  * geometry for the zoom level, which is accurate to about one pixel
+	  * @return the index of the first matching country, or -1 for the ocean
+	  * */
+	public int locateCoarse(float lat, float lon, int zoomLevel) {
+		int tier = tierForZoom(zoomLevel);
+		for (int r = 0; r < ringLat.length; r++) {
+			if (!inBounds(r, lat, lon)) {
+				continue;
+			}
+			float[] lats = ringLat[r];
+			float[] lons = ringLon[r];
+			if (tier >= 0 && tierLat[tier][r] != null) {
+				lats = tierLat[tier][r];
+				lons = tierLon[tier][r];
+			}
+			if (isInside(lat, lon, lats, lons)) {
+				return ringCountry[r];
+			}
+		}
+		return -1;
+	}
+
+	private boolean inBounds(int r, float lat, float lon) {
+		return lat >= minLat[r] && lat <= maxLat[r] && lon >= minLon[r] && lon <= maxLon[r];
+	}
+
+	/** Even-odd crossing test, the same one AbstractShapeMarker.isInsideByLocation uses */
+	private static boolean isInside(float lat, float lon, float[] lats, float[] lons) {
+		boolean inside = false;
+		for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+			if (((lons[i] <= lon && lon < lons[j]) || (lons[j] <= lon && lon < lons[i]))
+					&& lat < (lats[j] - lats[i]) * (lon - lons[i]) / (lons[j] - lons[i]) + lats[i]) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/** Classifies a point against a simplified ring whose original lies
+	  * within tolerance of it. Points further than the tolerance from the
+	  * simplified outline are on the same side of the original outline.
+	  * @return 1 if inside, -1 if outside, 0 if too close to decide
+	  * */
+	private static int classify(float lat, float lon, float[] lats, float[] lons, float tolerance) {
+		boolean inside = false;
+		float band = tolerance * 1.01f;
+		float bandSq = band * band;
+		for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+			if (((lons[i] <= lon && lon < lons[j]) || (lons[j] <= lon && lon < lons[i]))
+					&& lat < (lats[j] - lats[i]) * (lon - lons[i]) / (lons[j] - lons[i]) + lats[i]) {
+				inside = !inside;
+			}
+			if (segmentDistanceSq(lat, lon, lats[j], lons[j], lats[i], lons[i]) <= bandSq) {
+				return 0;
+			}
+		}
+		return inside ? 1 : -1;
+	}
+
+	/** Squared planar distance from (px, py) to the segment (ax, ay)-(bx, by) */
+	private static float segmentDistanceSq(float px, float py, float ax, float ay, float bx, float by) {
+		float dx = bx - ax;
+		float dy = by - ay;
+		float lengthSq = dx * dx + dy * dy;
+		float t = 0;
+		if (lengthSq > 0) {
+			t = ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+			t = Math.max(0, Math.min(1, t));
+		}
+		float ex = ax + t * dx - px;
+		float ey = ay + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+
+	/** Douglas-Peucker simplification of ring r for tier t */
+	private void simplify(int t, int r) {
+		float[] lats = ringLat[r];
+		float[] lons = ringLon[r];
+		int n = lats.length;
+		if (n < 4) {
+			return;
+		}
+		float toleranceSq = tierTolerance[t] * tierTolerance[t];
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n - 1] = true;
+		int[] stack = new int[2 * n];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			float maxSq = 0;
+			int index = -1;
+			for (int i = first + 1; i < last; i++) {
+				float distSq = segmentDistanceSq(lats[i], lons[i], lats[first], lons[first], lats[last], lons[last]);
+				if (distSq > maxSq) {
+					maxSq = distSq;
+					index = i;
+				}
+			}
+			if (index >= 0 && maxSq > toleranceSq) {
+				keep[index] = true;
+				stack[top++] = first;
+				stack[top++] = index;
+				stack[top++] = index;
+				stack[top++] = last;
+			}
+		}
+
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) {
+				count++;
+			}
+		}
+		// a closed ring needs three distinct points plus the closing one
+		if (count < 4 || count == n) {
+			return;
+		}
+		float[] simpleLat = new float[count];
+		float[] simpleLon = new float[count];
+		for (int i = 0, k = 0; i < n; i++) {
+			if (keep[i]) {
+				simpleLat[k] = lats[i];
+				simpleLon[k] = lons[i];
+				k++;
+			}
+		}
+		tierLat[t][r] = simpleLat;
+		tierLon[t][r] = simpleLon;
+	}
+
+	/** Builds country markers from the rings of a tier, sharing the original properties */
+	private List<Marker> createMarkers(int t) {
+		List<Marker> markers = new ArrayList<Marker>();
+		int r = 0;
+		for (int c = 0; c < countries.size(); c++) {
+			Marker country = countries.get(c);
+			HashMap<String, Object> properties = country.getProperties();
+			List<Marker> parts = new ArrayList<Marker>();
+			for (; r < ringLat.length && ringCountry[r] == c; r++) {
+				float[] lats = tierLat[t][r] != null ? tierLat[t][r] : ringLat[r];
+				float[] lons = tierLat[t][r] != null ? tierLon[t][r] : ringLon[r];
+				List<Location> locations = new ArrayList<Location>(lats.length);
+				for (int i = 0; i < lats.length; i++) {
+					locations.add(new Location(lats[i], lons[i]));
+				}
+				parts.add(new SimplePolygonMarker(locations, properties));
+			}
+			if (country.getClass() == MultiMarker.class) {
+				MultiMarker multi = new MultiMarker();
+				multi.setMarkers(parts);
+				multi.setProperties(properties);
+				multi.setId(country.getId());
+				markers.add(multi);
+			} else {
+				Marker part = parts.get(0);
+				part.setId(country.getId());
+				markers.add(part);
+			}
+		}
+		return markers;
+	}
+}
@@ -0,0 +1,189 @@
+package main;
+
+import java.awt.Font;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.data.Feature;
+import de.fhpotsdam.unfolding.data.GeoJSONReader;
+import de.fhpotsdam.unfolding.data.PointFeature;
+import parsing.ParseFeed;
+import parsing.SyntheticFeeds;
+import processing.core.PFont;
+import processing.core.PGraphicsJava2D;
+
+/** Checks that drawing the markers allocates nothing
+  * Draws every quake and city marker of a synthetic feed, all selected so
+  * their titles show too, into an offscreen Java2D canvas. After warming up,
+  * it counts the bytes the thread allocates over more such frames. The
+  * Java2D renderer allocates for most shapes and colors by itself, so this
+  * is done twice: once as is, for reference, and once with those renderer
+  * calls stubbed out, and the check exits with status 1 unless the second
+  * count is zero.
+  *   java main.DrawAllocationCheck [--quakes 2000] [--cities 500]
+  *       [--warmup-frames 500] [--frames 100]
+  * @author: Yufei Hu
+  * */
+public class DrawAllocationCheck {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	/** A Java2D canvas that skips the calls for which Processing's Java2D
+	  * renderer itself allocates, a Color per fill, a BasicStroke per stroke
+	  * weight, a Shape per ellipse, line or triangle and a style per
+	  * pushStyle, so what is left allocated comes from the marker code
+	  * */
+	static class RendererStub extends PGraphicsJava2D {
+
+		long stubbedCalls;
+
+		@Override
+		public void fill(float v1, float v2, float v3) {
+			stubbedCalls++;
+		}
+
+		@Override
+		public void strokeWeight(float weight) {
+			stubbedCalls++;
+		}
+
+		@Override
+		public void ellipse(float a, float b, float c, float d) {
+			stubbedCalls++;
+		}
+
+		@Override
+		public void line(float x1, float y1, float x2, float y2) {
+			stubbedCalls++;
+		}
+
+		@Override
+		public void triangle(float x1, float y1, float x2, float y2, float x3, float y3) {
+			stubbedCalls++;
+		}
+
+		@Override
+		public void pushStyle() {
+			stubbedCalls++;
+		}
+
+		@Override
+		public void popStyle() {
+			stubbedCalls++;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int quakes = 2000;
+		int cities = 500;
+		int warmupFrames = 500;
+		int frames = 100;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+			if (args[i].equals("--quakes")) {
+				quakes = value;
+			} else if (args[i].equals("--cities")) {
+				cities = value;
+			} else if (args[i].equals("--warmup-frames")) {
+				warmupFrames = value;
+			} else if (args[i].equals("--frames")) {
+				frames = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		List<CommonMarker> markers = createMarkers(quakes, cities);
+		long rendererBytes = measure(new PGraphicsJava2D(), markers, warmupFrames, frames);
+		RendererStub stub = new RendererStub();
+		long markerBytes = measure(stub, markers, warmupFrames, frames);
+
+		System.out.println("Drew " + markers.size() + " markers " + frames + " times");
+		System.out.println("Java2D canvas: " + rendererBytes + " bytes allocated, mostly by the renderer");
+		System.out.println("Marker code: " + markerBytes + " bytes allocated, besides "
+				+ stub.stubbedCalls + " stubbed renderer calls");
+		if (markerBytes != 0) {
+			System.out.println("FAIL: the marker draw path allocates");
+			System.exit(1);
+		}
+	}
+
+	/** Bytes this thread allocates drawing the given frames into pg after
+	  * the warm-up frames
+	  * */
+	private static long measure(PGraphicsJava2D pg, List<CommonMarker> markers, int warmupFrames, int frames) {
+		pg.setPrimary(false);
+		pg.setSize(900, 700);
+		pg.beginDraw();
+		// Without a sketch to measure native fonts, text is drawn from the
+		// font's glyph images, as with a font from loadFont()
+		PFont font = new PFont(new Font("SansSerif", Font.PLAIN, 12), true, PFont.CHARSET);
+		font.setNative(null);
+		pg.textFont(font);
+		for (int f = 0; f < warmupFrames; f++) {
+			drawFrame(pg, markers);
+		}
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int f = 0; f < frames; f++) {
+			drawFrame(pg, markers);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		pg.endDraw();
+		return allocated;
+	}
+
+	/** One frame of the marker layers: each marker with its title, drawn
+	  * over the last frame, as clearing it is not part of the markers
+	  * */
+	private static void drawFrame(PGraphicsJava2D pg, List<CommonMarker> markers) {
+		for (int i = 0; i < markers.size(); i++) {
+			CommonMarker marker = markers.get(i);
+			float x = 50 + (i * 37) % 800;
+			float y = 50 + (i * 53) % 600;
+			marker.drawMarker(pg, x, y);
+			marker.showTitle(pg, x, y);
+		}
+	}
+
+	/** Quake markers, half on land and half in the ocean, and city markers
+	  * read back from synthetic GeoJSON feeds, all selected
+	  * */
+	private static List<CommonMarker> createMarkers(int quakes, int cities) throws IOException {
+		SyntheticFeeds generator = new SyntheticFeeds(1);
+		long now = Instant.parse("2015-08-07T20:54:48Z").toEpochMilli();
+		List<SyntheticFeeds.Quake> generated = generator.generateQuakes(now - 7 * DAY, now,
+				quakes / 7.0, SyntheticFeeds.PLATE_BOUNDARIES);
+		StringWriter feed = new StringWriter();
+		SyntheticFeeds.writeGeoJSON(generated, now, feed);
+		List<PointFeature> quakeFeatures = ParseFeed.parseEarthquake(
+				new ByteArrayInputStream(feed.toString().getBytes(StandardCharsets.UTF_8)), "synthetic.geojson");
+		StringWriter cityFeed = new StringWriter();
+		generator.writeCities(cities, cityFeed);
+		List<Feature> cityFeatures = GeoJSONReader.loadDataFromJSON(null, cityFeed.toString());
+
+		List<CommonMarker> markers = new ArrayList<CommonMarker>();
+		for (int i = 0; i < quakeFeatures.size(); i++) {
+			if (i % 2 == 0) {
+				markers.add(new LandQuakeMarker(quakeFeatures.get(i)));
+			} else {
+				markers.add(new OceanQuakeMarker(quakeFeatures.get(i)));
+			}
+		}
+		for (Feature city : cityFeatures) {
+			markers.add(new CityMarker(city));
+		}
+		for (CommonMarker marker : markers) {
+			marker.setSelected(true);
+		}
+		return markers;
+	}
+}
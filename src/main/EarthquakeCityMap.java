@@ -1,421 +1,834 @@
-package main;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-
-import de.fhpotsdam.unfolding.UnfoldingMap;
-import de.fhpotsdam.unfolding.data.Feature;
-import de.fhpotsdam.unfolding.data.GeoJSONReader;
-import de.fhpotsdam.unfolding.data.PointFeature;
-import de.fhpotsdam.unfolding.geo.Location;
-import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
-import de.fhpotsdam.unfolding.marker.Marker;
-import de.fhpotsdam.unfolding.marker.MultiMarker;
-import de.fhpotsdam.unfolding.providers.Microsoft;
-import de.fhpotsdam.unfolding.providers.MBTilesMapProvider;
-import de.fhpotsdam.unfolding.utils.MapUtils;
-import de.fhpotsdam.unfolding.utils.ScreenPosition;
-import main.CommonMarker;
-import main.EarthquakeMarker;
-import main.LandQuakeMarker;
-import main.OceanQuakeMarker;
-import parsing.ParseFeed;
-import processing.core.PApplet;
-
-/** EarthquakeCityMap
-  * An application with an interactive map displaying earthquake data.
-  * @author: Yufei Hu
-  * Date: April 19, 2019
-  * */
-public class EarthquakeCityMap extends PApplet {
-	
-	// It's to get rid of eclipse warnings
-	private static final long serialVersionUID = 1L;
-
-	// Change the value of this variable to true to work offline
-	private static final boolean offline = false;
-	
-	// This is where to find the local tiles, for working without an Internet connection
-	public static String mbTilesString = "blankLight-1-3.mbtiles";
-	
-	// Feed with magnitude 2.5+ Earthquakes
-	private String earthquakesURL = "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/2.5_week.atom";
-	
-	// The files containing city names and info and country names and info
-	private String cityFile = "city-data.json";
-	private String countryFile = "countries.geo.json";
-	
-	// The map
-	private static UnfoldingMap map;
-	
-	// Markers for each city and earthquake
-	private static List<Marker> cityMarkers;
-	private static List<Marker> quakeMarkers;
-
-	// A List of country markers
-	private List<Marker> countryMarkers;
-	
-	// For events
-	private CommonMarker lastSelected;
-	private CommonMarker lastClicked;
-	private boolean cityGroupClicked = false;
-	
-	public void setup() {
-		// Initialize canvas and map tiles
-		size(900, 700, OPENGL);
-		if (offline) {
-		    map = new UnfoldingMap(this, 200, 50, 650, 600, new MBTilesMapProvider(mbTilesString));
-		    earthquakesURL = "2.5_week.atom";
-		} else {
-			map = new UnfoldingMap(this, 200, 50, 650, 600, new Microsoft.AerialProvider());
-		}
-		MapUtils.createDefaultEventDispatcher(this, map);
-		
-		// FOR TESTING:
-		// earthquakesURL = "test1.atom";
-		// earthquakesURL = "test2.atom";
-		
-		// FOR QUIZZING:
-		earthquakesURL = "quiz2.atom";
-		
-	    // Load country features and markers
-		List<Feature> countries = GeoJSONReader.loadData(this, countryFile);
-		countryMarkers = MapUtils.createSimpleMarkers(countries);
-		
-		// Read in city data
-		List<Feature> cities = GeoJSONReader.loadData(this, cityFile);
-		cityMarkers = new ArrayList<Marker>();
-		for (Feature city : cities) {
-		    cityMarkers.add(new CityMarker(city));
-		}
-	    
-		// Read in earthquake RSS feed
-	    List<PointFeature> earthquakes = ParseFeed.parseEarthquake(this, earthquakesURL);
-	    quakeMarkers = new ArrayList<Marker>();
-	    for (PointFeature feature : earthquakes) {
-		    if (isLand(feature)) {
-		        quakeMarkers.add(new LandQuakeMarker(feature));
-		    } else {
-		        quakeMarkers.add(new OceanQuakeMarker(feature));
-		    }
-	    }
-
-	    // FOR DEBUGGING:
-	    // printQuakes();
-	 	
-	    // Add markers to map
-	    map.addMarkers(quakeMarkers);
-	    map.addMarkers(cityMarkers);
-	    
-	    sortAndPrint(cityMarkers.size());
-	}
-	
-	public void draw() {
-		background(0);
-		map.draw();
-		drawHorizontalLine();
-		addKey();
-	}
-	
-	private void drawDashedLine(int xStart, int yStart, int width, int height) {
-		for (int y = yStart; y < yStart + height; y += 2) {
-		    for (int x = xStart; x < xStart + width; x += 6) {
-		    	pushStyle();
-		        stroke(-(x + y >> 1 & 1));
-		        line(x, y, x + 5, y);
-		        popStyle();
-		    }
-		}
-	}
-	
-	private void drawHorizontalLine() {
-		if (mouseX > 200 && mouseX < 750 && mouseY > 50 && mouseY < 650) {
-			drawDashedLine(200, mouseY, 650, 1);
-		}
-	}
-	
-	public static UnfoldingMap getMap() {
-		return map;
-	}
-	
-	public static List<Marker> getCityMarkers() {
-		return cityMarkers;
-	}
-	
-	public static List<Marker> getQuakeMarkers() {
-		return quakeMarkers;
-	}
-	
-	/** Sort and print earthquakes based on their magnitudes in descending order */
-	private void sortAndPrint(int numToPrint) {
-		ArrayList<EarthquakeMarker> markers = new ArrayList<EarthquakeMarker>();
-		for (Marker marker : quakeMarkers) {
-			markers.add((EarthquakeMarker)marker);
-		}
-		Collections.sort(markers);
-		for (int i = 0; i < Math.min(markers.size(), numToPrint); i++) {
-			System.out.println(markers.get(i));
-		}
-	}
-	
-	/** Event handler that gets called automatically when the mouse moves */
-	@Override
-	public void mouseMoved() {
-		if (lastSelected != null) {
-			lastSelected.setSelected(false);
-			lastSelected = null;
-		}
-		selectMarkerIfHover(quakeMarkers);
-		selectMarkerIfHover(cityMarkers);
-	}
-	
-	/** If there is a marker selected */
-	private void selectMarkerIfHover(List<Marker> markers) {
-		for (Marker marker : markers) {
-			if (marker.isInside(map, mouseX, mouseY) && lastSelected == null) {
-				lastSelected = (CommonMarker)marker;
-				lastSelected.setSelected(true);
-				return;
-			}
-		}
-	}
-	
-	/** Event handler for mouse clicks */
-	@Override
-	public void mouseClicked() {
-		if (lastClicked == null) {
-			hideMarkers();
-			
-			for (Marker quakeMarker : quakeMarkers) {
-				if (quakeMarker.isInside(map, mouseX, mouseY)) {
-					lastClicked = (CommonMarker)quakeMarker;
-					lastClicked.setSelected(true);
-					quakeMarker.setHidden(false);
-					EarthquakeMarker earthquakeMarker = (EarthquakeMarker)quakeMarker;
-					earthquakeMarker.setClicked(true);
-					double radiusThreat = earthquakeMarker.threatCircle();
-					Location centerQuake = earthquakeMarker.getLocation();
-					for (Marker cityMarker : cityMarkers) {
-						if (isInsideThreatCircle(cityMarker, radiusThreat, centerQuake)) {
-							cityMarker.setHidden(false);
-						}
-					}
-					cityGroupClicked = true;
-					return;
-				}
-			}
-			
-			for (Marker cityMarker : cityMarkers) {
-				if (cityMarker.isInside(map, mouseX, mouseY)) {
-					lastClicked = (CommonMarker)cityMarker;
-					lastClicked.setSelected(true);
-					cityMarker.setHidden(false);
-					CityMarker cityMarker2 = (CityMarker)cityMarker;
-					cityMarker2.setClicked(true);
-					for (Marker quakeMarker : quakeMarkers) {
-						double radiusThreat = ((EarthquakeMarker)quakeMarker).threatCircle();
-						Location centerQuake = ((EarthquakeMarker)quakeMarker).getLocation();
-						if (isInsideThreatCircle(cityMarker, radiusThreat, centerQuake)) {
-							quakeMarker.setHidden(false);
-						}
-					}
-					cityGroupClicked = true;
-					return;
-				}
-			}
-			
-			if (!cityGroupClicked && (mouseX > 200 && mouseX < 750 && mouseY > 50 && mouseY < 650)){
-				cityGroupClicked = true;
-				unhideCityMarkersAboveLine();
-			} else {
-				cityGroupClicked = false;
-				unhideMarkers();
-			}
-		} else {
-			lastClicked.setSelected(false);
-			lastClicked = null;
-			unhideMarkers();
-			cityGroupClicked = false;
-		}
-	}
-	
-	public static boolean isInsideThreatCircle(Marker cityMarker, double radiusThreat, Location centerQuake) {
-		if (cityMarker.getDistanceTo(centerQuake) < radiusThreat) {
-			return true;
-		} else {
-			return false;
-		}
-	}
-	
-	private void unhideCityMarkersAboveLine() {
-		for (Marker marker : cityMarkers) {
-			ScreenPosition posCity = ((CityMarker) marker).getScreenPosition(map);
-			float yCity = posCity.y;
-			if (yCity < mouseY) {
-				marker.setHidden(false);
-			}
-		}
-	}
-	
-	/** Loop over and hide all markers */
-	private void hideMarkers() {
-		for (Marker marker : quakeMarkers) {
-			marker.setHidden(true);
-		}
-		for (Marker marker : cityMarkers) {
-			marker.setHidden(true);
-		}
-	}
-	
-	/** Loop over and unhide all markers */
-	private void unhideMarkers() {
-		for (Marker marker : quakeMarkers) {
-			EarthquakeMarker earthquakeMarker = (EarthquakeMarker)marker;
-			earthquakeMarker.setClicked(false);
-			marker.setHidden(false);
-		}
-		for (Marker marker : cityMarkers) {
-			CityMarker cityMarker = (CityMarker)marker;
-			cityMarker.setClicked(false);
-			marker.setHidden(false);
-		}
-	}
-	
-	/** Helper method to draw keys in GUI */
-	private void addKey() {
-		int xbase = 25;
-		int ybase = 50;
-		fill(255, 250, 240);
-		rect(xbase, ybase, 150, 250);
-		
-		fill(0);
-		textAlign(LEFT, CENTER);
-		textSize(12);
-		text("Earthquake Key", xbase + 25, ybase + 25);
-		
-		int tri_xbase = xbase + 35;
-		int tri_ybase = ybase + 50;
-		fill(150, 30, 30);
-		triangle(tri_xbase, tri_ybase - CityMarker.TRI_SIZE, tri_xbase - CityMarker.TRI_SIZE, 
-				 tri_ybase + CityMarker.TRI_SIZE, tri_xbase + CityMarker.TRI_SIZE, 
-				 tri_ybase + CityMarker.TRI_SIZE);
-
-		fill(0, 0, 0);
-		textAlign(LEFT, CENTER);
-		text("City Marker", tri_xbase + 15, tri_ybase);
-		text("Land Quake", xbase + 50, ybase + 70);
-		text("Ocean Quake", xbase + 50, ybase + 90);
-		text("Size ~ Magnitude", xbase + 25, ybase + 110);
-		
-		fill(255, 255, 255);
-		ellipse(xbase + 35, ybase + 70, 10, 10);
-		rect(xbase + 35 - 5, ybase + 90 - 5, 10, 10);
-		
-		fill(color(255, 255, 0));
-		ellipse(xbase + 35, ybase + 140, 12, 12);
-		fill(color(0, 0, 255));
-		ellipse(xbase + 35, ybase + 160, 12, 12);
-		fill(color(255, 0, 0));
-		ellipse(xbase + 35, ybase + 180, 12, 12);
-		
-		textAlign(LEFT, CENTER);
-		fill(0, 0, 0);
-		text("Shallow", xbase + 50, ybase + 140);
-		text("Intermediate", xbase + 50, ybase + 160);
-		text("Deep", xbase + 50, ybase + 180);
-		text("Past hour", xbase + 50, ybase + 200);
-		
-		fill(255, 255, 255);
-		int centerx = xbase + 35;
-		int centery = ybase + 200;
-		ellipse(centerx, centery, 12, 12);
-
-		strokeWeight(2);
-		line(centerx - 8, centery - 8, centerx + 8, centery + 8);
-		line(centerx - 8, centery + 8, centerx + 8, centery - 8);
-	}
-
-	/** Checks whether this quake occurred on land.  If it did, it sets the 
-	  * "country" property of its PointFeature to the country where it occurred
-	  * and returns true.  Notice that the helper method isInCountry will
-	  * set this "country" property already.  Otherwise it returns false.
-	  * */
-	private boolean isLand(PointFeature earthquake) {
-		for (Marker marker : countryMarkers) {
-			if (isInCountry(earthquake, marker)) {
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	/** Prints countries with number of earthquakes
-	  * You will want to loop through the country markers or country features
-	  * (either will work) and then for each country, loop through
-	  * the quakes to count how many occurred in that country.
-	  * Recall that the country markers have a "name" property, 
-	  * And LandQuakeMarkers have a "country" property set.
-	  * */
-	private void printQuakes() {
-		for (Marker countryMarker : countryMarkers) {
-			int quakeCnt = 0;
-			String countryName = (String)countryMarker.getProperty("name");
-			for (Marker quakeMarker : quakeMarkers) {
-				EarthquakeMarker earthquakeMarker = (EarthquakeMarker)quakeMarker;
-				if (earthquakeMarker.isOnLand()) {
-					String quakeCountryName = ((LandQuakeMarker)earthquakeMarker).getCountry();
-					if (countryName.equals(quakeCountryName)) {
-						quakeCnt += 1;
-					}
-				}
-			}
-			if (quakeCnt != 0) {
-				System.out.println(countryName + ": " + quakeCnt);
-			}
-		}
-		
-		int oceanCnt = 0;
-		for (Marker quakeMarker : quakeMarkers) {
-			EarthquakeMarker earthquakeMarker = (EarthquakeMarker)quakeMarker;
-			if (!earthquakeMarker.isOnLand()) {
-				oceanCnt += 1;
-			}
-		}
-		
-		System.out.println("OCEAN QUAKES: " + oceanCnt);
-	}
-	
-	/** Helper method to test whether a given earthquake is in a given country
-	  * This will also add the country property to the properties of the earthquake feature if 
-	  * it's in one of the countries.
-	  * */
-	private boolean isInCountry(PointFeature earthquake, Marker country) {
-		// getting location of feature
-		Location checkLoc = earthquake.getLocation();
-
-		// some countries represented it as MultiMarker
-		// looping over SimplePolygonMarkers which make them up to use isInsideByLoc
-		if (country.getClass() == MultiMarker.class) {
-				
-			// looping over markers making up MultiMarker
-			for (Marker marker : ((MultiMarker)country).getMarkers()) {
-					
-				// check if inside
-				if (((AbstractShapeMarker)marker).isInsideByLocation(checkLoc)) {
-					earthquake.addProperty("country", country.getProperty("name"));
-					return true;
-				}
-			}
-		}
-		
-		// check if inside country represented by SimplePolygonMarker
-		else if (((AbstractShapeMarker)country).isInsideByLocation(checkLoc)) {
-			earthquake.addProperty("country", country.getProperty("name"));
-			return true;
-		}
-		
-		return false;
-	}
-}
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.data.Feature;
+import de.fhpotsdam.unfolding.data.GeoJSONReader;
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.mapdisplay.AbstractMapDisplay;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.providers.Microsoft;
+import de.fhpotsdam.unfolding.providers.MBTilesMapProvider;
+import de.fhpotsdam.unfolding.utils.MapUtils;
+import main.CommonMarker;
+import main.EarthquakeMarker;
+import main.LandQuakeMarker;
+import main.OceanQuakeMarker;
+import parsing.Gazetteer;
+import parsing.MultiFeedLoader;
+import parsing.ParseFeed;
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.event.MouseEvent;
+
+/** EarthquakeCityMap
+  * An application with an interactive map displaying earthquake data.
+  * @author: Yufei Hu
+  * Date: April 19, 2019
+  * */
+public class EarthquakeCityMap extends PApplet {
+	
+	// It's to get rid of eclipse warnings
+	private static final long serialVersionUID = 1L;
+
+	// Change the value of this variable to true to work offline
+	private static final boolean offline = false;
+	
+	// Only render frames when something changed instead of at the default frame rate
+	private static final boolean renderOnDemand = true;
+	
+	// This is where to find the local tiles, for working without an Internet connection
+	public static String mbTilesString = "blankLight-1-3.mbtiles";
+	
+	// Feed with magnitude 2.5+ Earthquakes
+	private String earthquakesURL = "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/2.5_week.atom";
+	
+	// Further feeds fetched alongside it and merged into the same markers, Atom or
+	// GeoJSON, e.g. "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/significant_month.geojson"
+	private String[] extraEarthquakesURLs = {};
+	
+	// Folder in the data directory keeping every parsed quake across runs, and
+	// how many days of stored quakes to show; 0 shows only the current feeds
+	private String historyDir = "quake-history";
+	private int historyDays = 30;
+	
+	// The files containing city names and info and country names and info
+	private String cityFile = "city-data.json";
+	private String countryFile = "countries.geo.json";
+	
+	// A large place dump read instead of cityFile when set, e.g. the GeoNames
+	// cities500.txt (optionally gzipped), and the smallest population kept from
+	// it in millions; only the larger cities are shown when zoomed out
+	private String gazetteerFile = null;
+	private float gazetteerMinPopulation = 0.01f;
+	private CityLevelOfDetail cityDetail;
+	private int cityTier = -1;
+	
+	// World Bank life expectancy per country, loaded when first shown
+	private String lifeExpectancyFile = "LifeExpectancyWorldBank.csv";
+	private HashMap<String, Float> lifeExpectancy;
+	
+	// The map
+	private static UnfoldingMap map;
+	
+	// Markers for each city and earthquake
+	private static List<Marker> cityMarkers;
+	private static List<Marker> quakeMarkers;
+	
+	// Cached screen positions of the city and earthquake markers
+	private MarkerProjectionCache cityProjection;
+	private MarkerProjectionCache quakeProjection;
+	
+	// Visibility and click state of the city and earthquake markers
+	private MarkerLayer cityLayer;
+	private MarkerLayer quakeLayer;
+	
+	// Threatening quakes and statistics for every city
+	private static CityExposure exposure;
+	
+	// City unit vectors for bulk threat circle queries
+	private static GreatCircleKernel cityKernel;
+	
+	// Quake density shown instead of the quake markers when zoomed out,
+	// by default only for catalogs of at least DENSITY_MIN_QUAKES quakes;
+	// the 'h' key toggles it
+	private static final int DENSITY_MAX_ZOOM = 3;
+	private static final int DENSITY_MIN_QUAKES = 1000;
+	private QuakeDensityLayer densityLayer;
+	private boolean showDensity;
+	
+	// Countries colored by quake count or life expectancy; the 'c' key
+	// cycles through no coloring and the two values
+	private static final int CHOROPLETH_OFF = 0;
+	private static final int CHOROPLETH_QUAKES = 1;
+	private static final int CHOROPLETH_LIFE_EXPECTANCY = 2;
+	private ChoroplethLayer choroplethLayer;
+	private int choroplethMode = CHOROPLETH_OFF;
+	
+	// Set by SoakHarness before the sketch starts: local tiles, and feeds
+	// and a city file used instead of the above
+	boolean offlineTiles = offline;
+	String[] feedOverride;
+	String cityFileOverride;
+
+	// A List of country markers
+	private List<Marker> countryMarkers;
+	
+	// Full and simplified country outlines for land classification
+	private CountryGeometry countryGeometry;
+	
+	// For events
+	private CommonMarker lastSelected;
+	private CommonMarker lastClicked;
+	private boolean cityGroupClicked = false;
+	
+	// Latest cursor position reported by mouseMoved, resolved once per frame
+	private int hoverX;
+	private int hoverY;
+	private boolean hoverPending = false;
+	
+	// Rounding slack for the bounding cap test in isInsideThreatCircle
+	static final double CAP_MARGIN = 1e-9;
+	
+	// For on-demand rendering: whether the map layer needs repainting,
+	// the offscreen layer the map and key are painted into once and which
+	// every frame composites the cursor line over, and the map transform it shows.
+	// mapDirty is volatile, as the event handlers set it too.
+	private volatile boolean mapDirty = true;
+	private PGraphics mapLayer;
+	private boolean lineShown = false;
+	private double lastInnerOffsetX;
+	private double lastInnerOffsetY;
+	private float lastInnerScale;
+	private float lastInnerAngle;
+	
+	public void setup() {
+		// Initialize canvas and map tiles
+		size(900, 700, OPENGL);
+		if (offlineTiles) {
+		    map = new UnfoldingMap(this, 200, 50, 650, 600, new MBTilesMapProvider(mbTilesString));
+		    earthquakesURL = "2.5_week.atom";
+		} else {
+			map = new UnfoldingMap(this, 200, 50, 650, 600, new Microsoft.AerialProvider());
+		}
+		MapUtils.createDefaultEventDispatcher(this, map);
+		
+		// FOR TESTING:
+		// earthquakesURL = "test1.atom";
+		// earthquakesURL = "test2.atom";
+		
+		// FOR QUIZZING:
+		earthquakesURL = "quiz2.atom";
+		
+		// FOR SOAK TESTING:
+		if (feedOverride != null) {
+			earthquakesURL = feedOverride[0];
+			extraEarthquakesURLs = Arrays.copyOfRange(feedOverride, 1, feedOverride.length);
+			historyDays = 0;
+		}
+		if (cityFileOverride != null) {
+			cityFile = cityFileOverride;
+		}
+		
+	    // Load country features and markers
+		List<Feature> countries = GeoJSONReader.loadData(this, countryFile);
+		countryMarkers = MapUtils.createSimpleMarkers(countries);
+		countryGeometry = new CountryGeometry(countryMarkers);
+		
+		// Read in city data
+		if (gazetteerFile != null) {
+			cityDetail = loadGazetteer();
+		}
+		if (cityDetail != null) {
+			cityTier = CityLevelOfDetail.tierForZoom(map.getZoomLevel());
+			cityMarkers = cityDetail.getMarkers(cityTier);
+		} else {
+			List<Feature> cities = GeoJSONReader.loadData(this, cityFile);
+			cityMarkers = new ArrayList<Marker>();
+			for (Feature city : cities) {
+			    cityMarkers.add(new CityMarker(city));
+			}
+		}
+		
+	    // Project markers once, re-used until the map is panned or zoomed
+	    cityProjection = new MarkerProjectionCache(cityMarkers);
+	    cityKernel = new GreatCircleKernel(cityMarkers);
+	    
+	    loadEarthquakes();
+
+	    // FOR DEBUGGING:
+	    // printQuakes();
+	    
+	    // Country coloring goes below the markers
+	    choroplethLayer = new ChoroplethLayer(countryGeometry);
+	    choroplethLayer.disableDrawing();
+	    map.addMarkerManager(choroplethLayer);
+	    
+	    // Add markers to map, with their visibility kept in bitsets
+	    quakeLayer = new MarkerLayer(quakeMarkers);
+	    cityLayer = new MarkerLayer(cityMarkers);
+	    map.addMarkerManager(quakeLayer);
+	    map.addMarkerManager(cityLayer);
+	    
+	    // Accumulate the quake density once; later changes are incremental
+	    densityLayer = new QuakeDensityLayer(this);
+	    for (Marker marker : quakeMarkers) {
+	    	densityLayer.add((EarthquakeMarker)marker);
+	    }
+	    showDensity = quakeMarkers.size() >= DENSITY_MIN_QUAKES;
+	    
+	    sortAndPrint(cityMarkers.size());
+	    
+	    if (renderOnDemand) {
+	    	mapLayer = createGraphics(width, height, OPENGL);
+	    	noLoop();
+	    }
+	}
+	
+	/** Reads in the earthquake feeds, fetched in parallel and merged by event
+	  * id, into new quake markers, and projects them and computes the
+	  * exposure of all cities up front for the city panel. With a gazetteer
+	  * that covers the cities of the current tier, and is extended as deeper
+	  * tiers are first shown.
+	  * */
+	private void loadEarthquakes() {
+	    String[] feeds = new String[1 + extraEarthquakesURLs.length];
+	    feeds[0] = earthquakesURL;
+	    System.arraycopy(extraEarthquakesURLs, 0, feeds, 1, extraEarthquakesURLs.length);
+	    List<PointFeature> earthquakes = MultiFeedLoader.parseEarthquakes(this, feeds);
+	    if (historyDays > 0) {
+	    	earthquakes = addHistory(earthquakes);
+	    }
+	    quakeMarkers = new ArrayList<Marker>();
+	    for (PointFeature feature : earthquakes) {
+		    if (isLand(feature)) {
+		        quakeMarkers.add(new LandQuakeMarker(feature));
+		    } else {
+		        quakeMarkers.add(new OceanQuakeMarker(feature));
+		    }
+	    }
+	    quakeProjection = new MarkerProjectionCache(quakeMarkers);
+	    exposure = new CityExposure(cityMarkers, quakeMarkers);
+	    exposure.compute();
+	}
+	
+	/** Re-reads the earthquake feeds, e.g. after they were updated, and swaps
+	  * in the new quake markers; the 'r' key triggers it. Hover and clicks are
+	  * reset, and the density layer only takes in the quakes that came and went.
+	  * */
+	public void refreshEarthquakes() {
+		if (lastSelected != null) {
+			lastSelected.setSelected(false);
+			lastSelected = null;
+		}
+		if (lastClicked != null) {
+			lastClicked.setSelected(false);
+			lastClicked = null;
+		}
+		unhideMarkers();
+		cityGroupClicked = false;
+		
+		HashMap<String, List<EarthquakeMarker>> previous = new HashMap<String, List<EarthquakeMarker>>();
+		for (Marker marker : quakeMarkers) {
+			String key = densityKey(marker);
+			List<EarthquakeMarker> same = previous.get(key);
+			if (same == null) {
+				same = new ArrayList<EarthquakeMarker>(1);
+				previous.put(key, same);
+			}
+			same.add((EarthquakeMarker)marker);
+		}
+		
+		loadEarthquakes();
+		quakeLayer.reset(quakeMarkers);
+		
+		for (Marker marker : quakeMarkers) {
+			List<EarthquakeMarker> same = previous.get(densityKey(marker));
+			if (same != null && !same.isEmpty()) {
+				same.remove(same.size() - 1);
+			} else {
+				densityLayer.add((EarthquakeMarker)marker);
+			}
+		}
+		for (List<EarthquakeMarker> gone : previous.values()) {
+			for (EarthquakeMarker marker : gone) {
+				densityLayer.remove(marker);
+			}
+		}
+		if (choroplethMode == CHOROPLETH_QUAKES) {
+			choroplethLayer.setValues(ChoroplethLayer.countQuakes(quakeMarkers, countryGeometry));
+		}
+		requestRedraw(true);
+	}
+	
+	/** What a quake adds to the density: its position and magnitude */
+	private static String densityKey(Marker quake) {
+		Location location = quake.getLocation();
+		return location.getLat() + ":" + location.getLon() + ":" + ((EarthquakeMarker)quake).getMagnitude();
+	}
+	
+	/** Repaints the map and key only when they are dirty, into the map layer
+	  * that stays on the GPU, and then draws that layer and the cursor line on
+	  * top, so a frame that only moves the line reads nothing back.
+	  * Keeps looping while tiles load or a pan or zoom animation runs.
+	  * */
+	public void draw() {
+		resolveHover();
+		if (!renderOnDemand) {
+			updateCityDetail();
+			drawMap();
+		} else {
+			if (mapDirty) {
+				updateCityDetail();
+				// The map and the key draw through g, so point it at the layer
+				PGraphics canvas = g;
+				mapLayer.beginDraw();
+				g = mapLayer;
+				drawMap();
+				g = canvas;
+				mapLayer.endDraw();
+			}
+			image(mapLayer, 0, 0);
+		}
+		drawHorizontalLine();
+		if (renderOnDemand && !mapDirty) {
+			noLoop();
+		}
+	}
+	
+	/** Paints the map with its markers or the quake density, and the key,
+	  * and notes whether the map is still moving or loading tiles
+	  * */
+	private void drawMap() {
+		background(0);
+		boolean density = isDensityShown();
+		if (density) {
+			quakeLayer.disableDrawing();
+		} else {
+			quakeLayer.enableDrawing();
+		}
+		map.draw();
+		if (density) {
+			clip(200, 50, 650, 600);
+			densityLayer.draw(g, map);
+			noClip();
+		}
+		addKey();
+		mapDirty = mapMoved() || !map.allTilesLoaded();
+	}
+	
+	/** Reads the gazetteer, or returns null if it cannot be read */
+	private CityLevelOfDetail loadGazetteer() {
+		BufferedReader reader = createReader(gazetteerFile);
+		if (reader == null) {
+			System.err.println("Could not open " + gazetteerFile);
+			return null;
+		}
+		try {
+			Gazetteer gazetteer = Gazetteer.loadGeoNames(reader, gazetteerMinPopulation);
+			System.out.println("Read " + gazetteer.size() + " places from " + gazetteerFile);
+			return new CityLevelOfDetail(gazetteer);
+		} catch (IOException e) {
+			System.err.println("Could not read " + gazetteerFile + ": " + e);
+			return null;
+		}
+	}
+	
+	/** Switches the cities to those of the zoom level's tier. While a marker
+	  * or the cities above the line are clicked the cities stay, as that state
+	  * refers to the current city indices. A city has the same index in
+	  * every tier that shows it, so the exposure only grows by the cities of
+	  * a tier deeper than any shown since the quakes were read.
+	  * */
+	private void updateCityDetail() {
+		if (cityDetail == null || lastClicked != null || cityGroupClicked) {
+			return;
+		}
+		int tier = CityLevelOfDetail.tierForZoom(map.getZoomLevel());
+		if (tier == cityTier) {
+			return;
+		}
+		cityTier = tier;
+		if (lastSelected instanceof CityMarker) {
+			lastSelected.setSelected(false);
+			lastSelected = null;
+		}
+		cityMarkers = cityDetail.getMarkers(tier);
+		cityProjection = new MarkerProjectionCache(cityMarkers);
+		cityKernel = new GreatCircleKernel(cityMarkers);
+		exposure.extend(cityMarkers);
+		cityLayer.reset(cityMarkers);
+	}
+	
+	/** Schedules a frame; mapChanged marks the map layer dirty as well.
+	  * This uses loop() rather than redraw(), as a redraw() requested from an
+	  * event handled right after draw() would be dropped by Processing.
+	  * */
+	public void requestRedraw(boolean mapChanged) {
+		if (mapChanged) {
+			mapDirty = true;
+		}
+		loop();
+	}
+	
+	/** Switches the country coloring, only joining new values onto the
+	  * cached country shapes
+	  * */
+	private void setChoroplethMode(int mode) {
+		choroplethMode = mode;
+		if (mode == CHOROPLETH_QUAKES) {
+			choroplethLayer.setValues(ChoroplethLayer.countQuakes(quakeMarkers, countryGeometry));
+		} else if (mode == CHOROPLETH_LIFE_EXPECTANCY) {
+			if (lifeExpectancy == null) {
+				lifeExpectancy = ParseFeed.loadLifeExpectancyFromCSV(this, lifeExpectancyFile);
+			}
+			choroplethLayer.setValues(lifeExpectancy);
+		}
+		if (mode == CHOROPLETH_OFF) {
+			choroplethLayer.disableDrawing();
+		} else {
+			choroplethLayer.enableDrawing();
+		}
+	}
+	
+	/** Whether the density layer replaces the quake markers: when zoomed
+	  * out and nothing is clicked, so a clicked city still shows its threats
+	  * */
+	private boolean isDensityShown() {
+		return showDensity && lastClicked == null && map.getZoomLevel() <= DENSITY_MAX_ZOOM;
+	}
+	
+	/** Whether the map transform changed since the last call */
+	private boolean mapMoved() {
+		AbstractMapDisplay display = map.mapDisplay;
+		boolean moved = display.innerOffsetX != lastInnerOffsetX
+				|| display.innerOffsetY != lastInnerOffsetY
+				|| display.innerScale != lastInnerScale
+				|| display.innerAngle != lastInnerAngle;
+		lastInnerOffsetX = display.innerOffsetX;
+		lastInnerOffsetY = display.innerOffsetY;
+		lastInnerScale = display.innerScale;
+		lastInnerAngle = display.innerAngle;
+		return moved;
+	}
+	
+	private void drawDashedLine(int xStart, int yStart, int width, int height) {
+		for (int y = yStart; y < yStart + height; y += 2) {
+		    for (int x = xStart; x < xStart + width; x += 6) {
+		    	pushStyle();
+		        stroke(-(x + y >> 1 & 1));
+		        line(x, y, x + 5, y);
+		        popStyle();
+		    }
+		}
+	}
+	
+	private void drawHorizontalLine() {
+		lineShown = isOverMap();
+		if (lineShown) {
+			drawDashedLine(200, mouseY, 650, 1);
+		}
+	}
+	
+	private boolean isOverMap() {
+		return mouseX > 200 && mouseX < 750 && mouseY > 50 && mouseY < 650;
+	}
+	
+	public static UnfoldingMap getMap() {
+		return map;
+	}
+	
+	public static List<Marker> getCityMarkers() {
+		return cityMarkers;
+	}
+	
+	public static List<Marker> getQuakeMarkers() {
+		return quakeMarkers;
+	}
+	
+	public static GreatCircleKernel getCityKernel() {
+		return cityKernel;
+	}
+	
+	public static CityExposure getExposure() {
+		return exposure;
+	}
+	
+	/** Sort and print earthquakes based on their magnitudes in descending order */
+	private void sortAndPrint(int numToPrint) {
+		ArrayList<EarthquakeMarker> markers = new ArrayList<EarthquakeMarker>();
+		for (Marker marker : quakeMarkers) {
+			markers.add((EarthquakeMarker)marker);
+		}
+		Collections.sort(markers);
+		for (int i = 0; i < Math.min(markers.size(), numToPrint); i++) {
+			System.out.println(markers.get(i));
+		}
+	}
+	
+	/** Event handler that gets called automatically when the mouse moves.
+	  * It only records the cursor; the hover query runs once in the next frame.
+	  * */
+	@Override
+	public void mouseMoved() {
+		hoverX = mouseX;
+		hoverY = mouseY;
+		hoverPending = true;
+		if (isOverMap() || lineShown || lastSelected != null) {
+			requestRedraw(false);
+		}
+	}
+	
+	/** Updates the hovered marker for the latest cursor position, skipping
+	  * the search while the cursor stays on the currently selected marker
+	  * */
+	private void resolveHover() {
+		if (!hoverPending) {
+			return;
+		}
+		hoverPending = false;
+		if (lastSelected != null && lastSelected.isInside(map, hoverX, hoverY)) {
+			return;
+		}
+		CommonMarker previous = lastSelected;
+		if (lastSelected != null) {
+			lastSelected.setSelected(false);
+			lastSelected = null;
+		}
+		if (!isDensityShown()) {
+			selectMarkerIfHover(quakeMarkers);
+		}
+		selectMarkerIfHover(cityMarkers);
+		if (lastSelected != previous) {
+			mapDirty = true;
+		}
+	}
+	
+	/** Dragging pans the map */
+	@Override
+	public void mouseDragged() {
+		requestRedraw(true);
+	}
+	
+	/** The mouse wheel zooms the map */
+	@Override
+	public void mouseWheel(MouseEvent event) {
+		requestRedraw(true);
+	}
+	
+	/** The keyboard pans and zooms the map, 'h' toggles the density layer,
+	  * 'c' cycles the country coloring and 'r' re-reads the earthquake feeds
+	  * */
+	@Override
+	public void keyPressed() {
+		if (key == 'h') {
+			showDensity = !showDensity;
+		} else if (key == 'c') {
+			setChoroplethMode((choroplethMode + 1) % 3);
+		} else if (key == 'r') {
+			refreshEarthquakes();
+			return;
+		}
+		requestRedraw(true);
+	}
+	
+	/** If there is a marker selected */
+	private void selectMarkerIfHover(List<Marker> markers) {
+		for (Marker marker : markers) {
+			if (marker.isInside(map, hoverX, hoverY) && lastSelected == null) {
+				lastSelected = (CommonMarker)marker;
+				lastSelected.setSelected(true);
+				return;
+			}
+		}
+	}
+	
+	/** Event handler for mouse clicks. The redraw is requested only once
+	  * the click state is set, as the animation thread may draw as soon as
+	  * the sketch loops again and would paint it half done.
+	  * */
+	@Override
+	public void mouseClicked() {
+		try {
+			if (lastClicked == null) {
+				hideMarkers();
+			
+				for (int i = 0; i < quakeMarkers.size() && !isDensityShown(); i++) {
+					if (quakeMarkers.get(i).isInside(map, mouseX, mouseY)) {
+						EarthquakeMarker earthquakeMarker = (EarthquakeMarker)quakeMarkers.get(i);
+						lastClicked = earthquakeMarker;
+						lastClicked.setSelected(true);
+						quakeLayer.setVisible(i, true);
+						quakeLayer.setClicked(i);
+						cityLayer.show(cityKernel.threatened(earthquakeMarker));
+						cityGroupClicked = true;
+						return;
+					}
+				}
+			
+				for (int i = 0; i < cityMarkers.size(); i++) {
+					if (cityMarkers.get(i).isInside(map, mouseX, mouseY)) {
+						lastClicked = (CommonMarker)cityMarkers.get(i);
+						lastClicked.setSelected(true);
+						cityLayer.setVisible(i, true);
+						cityLayer.setClicked(i);
+						BitSet threats = new BitSet(quakeMarkers.size());
+						for (int k = 0; k < exposure.getThreatCount(i); k++) {
+							threats.set(exposure.getThreat(i, k).getIndex());
+						}
+						quakeLayer.show(threats);
+						cityGroupClicked = true;
+						return;
+					}
+				}
+			
+				if (!cityGroupClicked && (mouseX > 200 && mouseX < 750 && mouseY > 50 && mouseY < 650)){
+					cityGroupClicked = true;
+					unhideCityMarkersAboveLine();
+				} else {
+					cityGroupClicked = false;
+					unhideMarkers();
+				}
+			} else {
+				lastClicked.setSelected(false);
+				lastClicked = null;
+				unhideMarkers();
+				cityGroupClicked = false;
+			}
+		} finally {
+			requestRedraw(true);
+		}
+	}
+	
+	public static boolean isInsideThreatCircle(Marker cityMarker, double radiusThreat, Location centerQuake) {
+		if (cityMarker.getDistanceTo(centerQuake) < radiusThreat) {
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/** Threat circle test that first compares the cosine of the angle between
+	  * the two markers with the cosine of the threat radius, and only runs the
+	  * full great-circle distance when the two are too close to call
+	  * */
+	public static boolean isInsideThreatCircle(CommonMarker cityMarker, EarthquakeMarker quakeMarker) {
+		double dot = cityMarker.dot(quakeMarker);
+		double cosine = quakeMarker.threatCosine();
+		if (dot < cosine - CAP_MARGIN) {
+			return false;
+		}
+		if (dot > cosine + CAP_MARGIN) {
+			return true;
+		}
+		return isInsideThreatCircle(cityMarker, quakeMarker.threatCircle(), quakeMarker.getLocation());
+	}
+	
+	private void unhideCityMarkersAboveLine() {
+		cityProjection.validate(map);
+		BitSet above = new BitSet(cityMarkers.size());
+		for (int i = 0; i < cityMarkers.size(); i++) {
+			if (cityProjection.getScreenY(i) < mouseY) {
+				above.set(i);
+			}
+		}
+		cityLayer.show(above);
+	}
+	
+	/** Hide all markers */
+	private void hideMarkers() {
+		quakeLayer.hideAll();
+		cityLayer.hideAll();
+	}
+	
+	/** Unhide all markers and reset the clicked one */
+	private void unhideMarkers() {
+		quakeLayer.clearClicked();
+		quakeLayer.showAll();
+		cityLayer.clearClicked();
+		cityLayer.showAll();
+	}
+	
+	/** Helper method to draw keys in GUI */
+	private void addKey() {
+		int xbase = 25;
+		int ybase = 50;
+		fill(255, 250, 240);
+		rect(xbase, ybase, 150, 250);
+		
+		fill(0);
+		textAlign(LEFT, CENTER);
+		textSize(12);
+		text("Earthquake Key", xbase + 25, ybase + 25);
+		
+		int tri_xbase = xbase + 35;
+		int tri_ybase = ybase + 50;
+		fill(150, 30, 30);
+		triangle(tri_xbase, tri_ybase - CityMarker.TRI_SIZE, tri_xbase - CityMarker.TRI_SIZE, 
+				 tri_ybase + CityMarker.TRI_SIZE, tri_xbase + CityMarker.TRI_SIZE, 
+				 tri_ybase + CityMarker.TRI_SIZE);
+
+		fill(0, 0, 0);
+		textAlign(LEFT, CENTER);
+		text("City Marker", tri_xbase + 15, tri_ybase);
+		text("Land Quake", xbase + 50, ybase + 70);
+		text("Ocean Quake", xbase + 50, ybase + 90);
+		text("Size ~ Magnitude", xbase + 25, ybase + 110);
+		
+		fill(255, 255, 255);
+		ellipse(xbase + 35, ybase + 70, 10, 10);
+		rect(xbase + 35 - 5, ybase + 90 - 5, 10, 10);
+		
+		fill(color(255, 255, 0));
+		ellipse(xbase + 35, ybase + 140, 12, 12);
+		fill(color(0, 0, 255));
+		ellipse(xbase + 35, ybase + 160, 12, 12);
+		fill(color(255, 0, 0));
+		ellipse(xbase + 35, ybase + 180, 12, 12);
+		
+		textAlign(LEFT, CENTER);
+		fill(0, 0, 0);
+		text("Shallow", xbase + 50, ybase + 140);
+		text("Intermediate", xbase + 50, ybase + 160);
+		text("Deep", xbase + 50, ybase + 180);
+		text("Past hour", xbase + 50, ybase + 200);
+		
+		fill(255, 255, 255);
+		int centerx = xbase + 35;
+		int centery = ybase + 200;
+		ellipse(centerx, centery, 12, 12);
+
+		strokeWeight(2);
+		line(centerx - 8, centery - 8, centerx + 8, centery + 8);
+		line(centerx - 8, centery + 8, centerx + 8, centery - 8);
+	}
+
+	/** Checks whether this quake occurred on land.  If it did, it sets the 
+	  * "country" property of its PointFeature to the country where it occurred
+	  * and returns true.  Otherwise it returns false.
+	  * */
+	private boolean isLand(PointFeature earthquake) {
+		// quakes classified by the history store already
+		Object land = earthquake.getProperty("land");
+		if (land != null) {
+			return (Boolean)land;
+		}
+		Location checkLoc = earthquake.getLocation();
+		int country = countryGeometry.locate(checkLoc.getLat(), checkLoc.getLon());
+		if (country < 0) {
+			return false;
+		}
+		earthquake.addProperty("country", countryGeometry.getName(country));
+		return true;
+	}
+	
+	/** Stores the parsed quakes in the history and merges in the stored
+	  * quakes of the last historyDays days. All returned quakes come with
+	  * their land/ocean classification, read from the store where known.
+	  * If the store cannot be used only the parsed quakes are returned.
+	  * */
+	private List<PointFeature> addHistory(List<PointFeature> earthquakes) {
+		try {
+			QuakeHistory history = new QuakeHistory(new File(dataPath(historyDir)), countryGeometry);
+			try {
+				history.record(earthquakes);
+				long from = System.currentTimeMillis() - historyDays * 24 * 60 * 60 * 1000L;
+				List<List<PointFeature>> feeds = new ArrayList<List<PointFeature>>();
+				feeds.add(earthquakes);
+				feeds.add(history.load(from, Long.MAX_VALUE, earthquakes));
+				return MultiFeedLoader.merge(feeds);
+			} finally {
+				history.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not use the quake history: " + e);
+			return earthquakes;
+		}
+	}
+	
+	/** Prints countries with number of earthquakes
+	  * You will want to loop through the country markers or country features
+	  * (either will work) and then for each country, loop through
+	  * the quakes to count how many occurred in that country.
+	  * Recall that the country markers have a "name" property, 
+	  * And LandQuakeMarkers have a "country" property set.
+	  * */
+	private void printQuakes() {
+		for (Marker countryMarker : countryMarkers) {
+			int quakeCnt = 0;
+			String countryName = (String)countryMarker.getProperty("name");
+			for (Marker quakeMarker : quakeMarkers) {
+				EarthquakeMarker earthquakeMarker = (EarthquakeMarker)quakeMarker;
+				if (earthquakeMarker.isOnLand()) {
+					String quakeCountryName = ((LandQuakeMarker)earthquakeMarker).getCountry();
+					if (countryName.equals(quakeCountryName)) {
+						quakeCnt += 1;
+					}
+				}
+			}
+			if (quakeCnt != 0) {
+				System.out.println(countryName + ": " + quakeCnt);
+			}
+		}
+		
+		int oceanCnt = 0;
+		for (Marker quakeMarker : quakeMarkers) {
+			EarthquakeMarker earthquakeMarker = (EarthquakeMarker)quakeMarker;
+			if (!earthquakeMarker.isOnLand()) {
+				oceanCnt += 1;
+			}
+		}
+		
+		System.out.println("OCEAN QUAKES: " + oceanCnt);
+	}
+}
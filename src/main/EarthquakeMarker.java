@@ -1,140 +1,183 @@
-package main;
-
-import de.fhpotsdam.unfolding.data.PointFeature;
-
-import processing.core.PConstants;
-import processing.core.PGraphics;
-
-/** Implements a visual marker for earthquakes on an earthquake map
-  * @author: Yufei Hu
-  * */
-public abstract class EarthquakeMarker extends CommonMarker implements Comparable<EarthquakeMarker> {
-	
-	// Did the earthquake occur on land? This will be set by the subclasses.
-	protected boolean isOnLand;
-
-	// The radius of the Earthquake marker
-	protected float radius;
-	
-	// Constants for distance
-	protected static final float kmPerMile = 1.6f;
-	
-	// Greater than or equal to this threshold is a moderate earthquake
-	public static final float THRESHOLD_MODERATE = 5;
-	
-	// Greater than or equal to this threshold is a light earthquake
-	public static final float THRESHOLD_LIGHT = 4;
-
-	// Greater than or equal to this threshold is an intermediate depth
-	public static final float THRESHOLD_INTERMEDIATE = 70;
-	
-	// Greater than or equal to this threshold is a deep depth
-	public static final float THRESHOLD_DEEP = 300;
-
-	// Abstract method implemented in derived classes
-	public abstract void drawEarthquake(PGraphics pg, float x, float y);
-
-	public EarthquakeMarker(PointFeature feature) {
-		super(feature.getLocation());
-		java.util.HashMap<String, Object> properties = feature.getProperties();
-		float magnitude = Float.parseFloat(properties.get("magnitude").toString());
-		properties.put("radius", 2 * magnitude);
-		setProperties(properties);
-		this.radius = 1.75f*getMagnitude();
-	}
-	
-	/** Implements the comparison method in Comparator class */
-	public int compareTo(EarthquakeMarker other) {
-		float magThis = this.getMagnitude();
-		float magOther = other.getMagnitude();
-		if (magThis > magOther) {
-			return -1;
-		} else if (magThis < magOther) {
-			return 1;
-		} else {
-			return 0;
-		}
-	}
-	
-	/** Calls abstract method drawEarthquake and then checks age and draws X if needed */
-	@Override
-	public void drawMarker(PGraphics pg, float x, float y) {
-		pg.pushStyle();
-		colorDetermine(pg);
-		drawEarthquake(pg, x, y);
-		String age = getStringProperty("age");
-		if ("Past Hour".equals(age) || "Past Day".equals(age)) {
-			pg.strokeWeight(2);
-			int buffer = 2;
-			pg.line(x - (radius + buffer), 
-					y - (radius + buffer), 
-					x + (radius + buffer), 
-					y + (radius + buffer));
-			pg.line(x - (radius + buffer), 
-					y + (radius + buffer), 
-					x + (radius + buffer), 
-					y - (radius + buffer));
-		}
-		pg.popStyle();
-	}
-
-	/** Show the title of the earthquake if this marker is selected */
-	public void showTitle(PGraphics pg, float x, float y) {
-		String content = getTitle();
-		float contentWidth = pg.textWidth(content);
-		pg.fill(255, 255, 255);
-		pg.rect(x, y, contentWidth + 4, 20);
-		pg.fill(0, 0, 0);
-		pg.text(content, x + 2, (float)(y + 14));
-	}
-
-	/** Return the "threat circle" radius, or distance up to
-	  * which this earthquake can affect things, for this earthquake.
-	  * */
-	public double threatCircle() {	
-		double miles = 20.0f * Math.pow(1.8, 2 * getMagnitude() - 5);
-		double km = (miles * kmPerMile);
-		return km;
-	}
-	
-	/** Determine color of marker from depth
-	  * Deep = red, intermediate = yellow, shallow = blue
-	  * */
-	private void colorDetermine(PGraphics pg) {
-		float depth = getDepth();
-		if (depth < THRESHOLD_INTERMEDIATE) {
-			pg.fill(255, 255, 0);
-		} else if (depth < THRESHOLD_DEEP) {
-			pg.fill(0, 0, 255);
-		} else {
-			pg.fill(255, 0, 0);
-		}
-	}
-	
-	/** Returns an earthquake marker's string representation
-	  * @return the string representation of an earthquake marker.
-	  */
-	public String toString() {
-		return getTitle();
-	}
-	
-	public float getMagnitude() {
-		return Float.parseFloat(getProperty("magnitude").toString());
-	}
-	
-	public float getDepth() {
-		return Float.parseFloat(getProperty("depth").toString());	
-	}
-	
-	public String getTitle() {
-		return (String) getProperty("title");
-	}
-	
-	public float getRadius() {
-		return Float.parseFloat(getProperty("radius").toString());
-	}
-	
-	public boolean isOnLand() {
-		return isOnLand;
-	}
-}
+package main;
+
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.utils.GeoUtils;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+/** Implements a visual marker for earthquakes on an earthquake map
+  * @author: Yufei Hu
+  * */
+public abstract class EarthquakeMarker extends CommonMarker implements Comparable<EarthquakeMarker> {
+	
+	// Did the earthquake occur on land? This will be set by the subclasses.
+	protected boolean isOnLand;
+
+	// The radius of the Earthquake marker
+	protected float radius;
+	
+	// Feature values parsed once, so drawing does not re-read the properties
+	protected float magnitude;
+	protected float depth;
+	protected boolean recent;
+	
+	// Constants for distance
+	protected static final float kmPerMile = 1.6f;
+	
+	// Threat circle radius in km for each tenth of magnitude from 0.0 to 10.0
+	private static final double[] THREAT_RADIUS_TABLE = new double[101];
+	static {
+		for (int tenths = 0; tenths < THREAT_RADIUS_TABLE.length; tenths++) {
+			THREAT_RADIUS_TABLE[tenths] = computeThreatRadius(tenths / 10f);
+		}
+	}
+	
+	// Threat circle radius in km, and the cosine of its central angle
+	protected double threatRadius;
+	protected double threatCosine;
+	
+	// Greater than or equal to this threshold is a moderate earthquake
+	public static final float THRESHOLD_MODERATE = 5;
+	
+	// Greater than or equal to this threshold is a light earthquake
+	public static final float THRESHOLD_LIGHT = 4;
+
+	// Greater than or equal to this threshold is an intermediate depth
+	public static final float THRESHOLD_INTERMEDIATE = 70;
+	
+	// Greater than or equal to this threshold is a deep depth
+	public static final float THRESHOLD_DEEP = 300;
+
+	// Abstract method implemented in derived classes
+	public abstract void drawEarthquake(PGraphics pg, float x, float y);
+
+	public EarthquakeMarker(PointFeature feature) {
+		super(feature.getLocation());
+		java.util.HashMap<String, Object> properties = feature.getProperties();
+		float magnitude = Float.parseFloat(properties.get("magnitude").toString());
+		properties.put("radius", 2 * magnitude);
+		setProperties(properties);
+		this.magnitude = magnitude;
+		this.depth = Float.parseFloat(properties.get("depth").toString());
+		String age = (String) properties.get("age");
+		this.recent = "Past Hour".equals(age) || "Past Day".equals(age);
+		this.radius = 1.75f*getMagnitude();
+		this.threatRadius = threatRadiusFor(magnitude);
+		this.threatCosine = Math.cos(Math.min(threatRadius / GeoUtils.EARTH_RADIUS_KM, Math.PI));
+	}
+	
+	/** Implements the comparison method in Comparator class */
+	public int compareTo(EarthquakeMarker other) {
+		float magThis = this.getMagnitude();
+		float magOther = other.getMagnitude();
+		if (magThis > magOther) {
+			return -1;
+		} else if (magThis < magOther) {
+			return 1;
+		} else {
+			return 0;
+		}
+	}
+	
+	/** Calls abstract method drawEarthquake and then checks age and draws X if needed */
+	@Override
+	public void drawMarker(PGraphics pg, float x, float y) {
+		pg.pushStyle();
+		colorDetermine(pg);
+		drawEarthquake(pg, x, y);
+		if (recent) {
+			pg.strokeWeight(2);
+			int buffer = 2;
+			pg.line(x - (radius + buffer), 
+					y - (radius + buffer), 
+					x + (radius + buffer), 
+					y + (radius + buffer));
+			pg.line(x - (radius + buffer), 
+					y + (radius + buffer), 
+					x + (radius + buffer), 
+					y - (radius + buffer));
+		}
+		pg.popStyle();
+	}
+
+	/** Show the title of the earthquake if this marker is selected */
+	public void showTitle(PGraphics pg, float x, float y) {
+		String content = getTitle();
+		float contentWidth = labelWidth(pg, content);
+		pg.fill(255, 255, 255);
+		pg.rect(x, y, contentWidth + 4, 20);
+		pg.fill(0, 0, 0);
+		pg.text(content, x + 2, (float)(y + 14));
+	}
+
+	/** Return the "threat circle" radius, or distance up to
+	  * which this earthquake can affect things, for this earthquake.
+	  * */
+	public double threatCircle() {	
+		return threatRadius;
+	}
+	
+	/** Cosine of the angle the threat circle spans at the center of the earth */
+	public double threatCosine() {
+		return threatCosine;
+	}
+	
+	/** Looks up the threat circle radius for the feed's 0.1 magnitude steps,
+	  * computing it only for magnitudes outside the table
+	  * */
+	public static double threatRadiusFor(float magnitude) {
+		int tenths = Math.round(magnitude * 10);
+		if (tenths >= 0 && tenths < THREAT_RADIUS_TABLE.length && tenths / 10f == magnitude) {
+			return THREAT_RADIUS_TABLE[tenths];
+		}
+		return computeThreatRadius(magnitude);
+	}
+	
+	private static double computeThreatRadius(float magnitude) {
+		double miles = 20.0f * Math.pow(1.8, 2 * magnitude - 5);
+		double km = (miles * kmPerMile);
+		return km;
+	}
+	
+	/** Determine color of marker from depth
+	  * Deep = red, intermediate = yellow, shallow = blue
+	  * */
+	private void colorDetermine(PGraphics pg) {
+		float depth = getDepth();
+		if (depth < THRESHOLD_INTERMEDIATE) {
+			pg.fill(255, 255, 0);
+		} else if (depth < THRESHOLD_DEEP) {
+			pg.fill(0, 0, 255);
+		} else {
+			pg.fill(255, 0, 0);
+		}
+	}
+	
+	/** Returns an earthquake marker's string representation
+	  * @return the string representation of an earthquake marker.
+	  */
+	public String toString() {
+		return getTitle();
+	}
+	
+	public float getMagnitude() {
+		return magnitude;
+	}
+	
+	public float getDepth() {
+		return depth;
+	}
+	
+	public String getTitle() {
+		return (String) getProperty("title");
+	}
+	
+	public float getRadius() {
+		return Float.parseFloat(getProperty("radius").toString());
+	}
+	
+	public boolean isOnLand() {
+		return isOnLand;
+	}
+}
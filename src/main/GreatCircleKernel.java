@@ -0,0 +1,99 @@
+package main;
+
+import java.util.BitSet;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.utils.GeoUtils;
+
+/** Great-circle proximity from one point to many points at once
+  * The points are kept as structure-of-arrays unit vectors, so a one-to-many
+  * query is three multiply-adds per point over contiguous double arrays, a
+  * loop the JIT turns into SIMD code. Distances and threshold masks are
+  * derived from these dot products; the threat circle mask makes exactly
+  * the same decisions as EarthquakeCityMap.isInsideThreatCircle.
+  * @author: Yufei Hu
+  * */
+public class GreatCircleKernel {
+
+	private final List<Marker> markers;
+
+	// Unit vectors of the points
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+
+	public GreatCircleKernel(List<Marker> markers) {
+		this.markers = markers;
+		int n = markers.size();
+		x = new double[n];
+		y = new double[n];
+		z = new double[n];
+		for (int i = 0; i < n; i++) {
+			CommonMarker marker = (CommonMarker)markers.get(i);
+			x[i] = marker.unitX;
+			y[i] = marker.unitY;
+			z[i] = marker.unitZ;
+		}
+	}
+
+	/** Number of points */
+	public int size() {
+		return x.length;
+	}
+
+	/** Cosines of the central angles between the unit vector (ux, uy, uz)
+	  * and every point, written to out[0] to out[size() - 1]
+	  * */
+	public void dot(double ux, double uy, double uz, double[] out) {
+		for (int i = 0; i < x.length; i++) {
+			out[i] = ux * x[i] + uy * y[i] + uz * z[i];
+		}
+	}
+
+	/** Cosines of the central angles between the marker and every point */
+	public void dot(CommonMarker from, double[] out) {
+		dot(from.unitX, from.unitY, from.unitZ, out);
+	}
+
+	/** Great-circle distances in km between the marker and every point */
+	public void distance(CommonMarker from, double[] outKm) {
+		dot(from, outKm);
+		for (int i = 0; i < x.length; i++) {
+			outKm[i] = Math.acos(Math.max(-1, Math.min(1, outKm[i]))) * GeoUtils.EARTH_RADIUS_KM;
+		}
+	}
+
+	/** The points within radiusKm of the marker */
+	public BitSet within(CommonMarker center, double radiusKm) {
+		double[] dots = new double[x.length];
+		dot(center, dots);
+		double cosine = Math.cos(radiusKm / GeoUtils.EARTH_RADIUS_KM);
+		long[] words = new long[(x.length + 63) >> 6];
+		for (int i = 0; i < x.length; i++) {
+			if (dots[i] >= cosine) {
+				words[i >> 6] |= 1L << i;
+			}
+		}
+		return BitSet.valueOf(words);
+	}
+
+	/** The points inside the quake's threat circle. Points within rounding
+	  * distance of the circle go through the exact per-pair test.
+	  * */
+	public BitSet threatened(EarthquakeMarker quake) {
+		double[] dots = new double[x.length];
+		dot(quake, dots);
+		double cosine = quake.threatCosine();
+		double inside = cosine + EarthquakeCityMap.CAP_MARGIN;
+		double outside = cosine - EarthquakeCityMap.CAP_MARGIN;
+		long[] words = new long[(x.length + 63) >> 6];
+		for (int i = 0; i < x.length; i++) {
+			if (dots[i] > inside || (dots[i] >= outside
+					&& EarthquakeCityMap.isInsideThreatCircle(markers.get(i), quake.threatCircle(), quake.getLocation()))) {
+				words[i >> 6] |= 1L << i;
+			}
+		}
+		return BitSet.valueOf(words);
+	}
+}
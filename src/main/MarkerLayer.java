@@ -0,0 +1,100 @@
+package main;
+
+import java.util.BitSet;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MarkerManager;
+
+/** Marker manager keeping visibility and click state in bitsets over marker indices
+  * Hiding or showing everything only touches the bitset words, filters are
+  * plain set operations, and drawing visits the visible markers only.
+  * Marker i of the layer is the marker at index i of its list.
+  * @author: Yufei Hu
+  * */
+public class MarkerLayer extends MarkerManager<Marker> {
+
+	private final BitSet visible = new BitSet();
+	private final BitSet clicked = new BitSet();
+
+	public MarkerLayer(List<Marker> markers) {
+		super();
+		reset(markers);
+	}
+
+	/** Replaces the markers of this layer, all of them visible and none clicked */
+	public void reset(List<Marker> markers) {
+		clearClicked();
+		setMarkers(markers);
+		for (int i = 0; i < markers.size(); i++) {
+			Marker marker = markers.get(i);
+			if (marker instanceof CommonMarker) {
+				((CommonMarker)marker).setLayer(this, i);
+			}
+		}
+		visible.clear();
+		visible.set(0, markers.size());
+	}
+
+	/** Number of markers in this layer */
+	public int size() {
+		return markers.size();
+	}
+
+	public boolean isVisible(int index) {
+		return visible.get(index);
+	}
+
+	public void setVisible(int index, boolean state) {
+		visible.set(index, state);
+	}
+
+	/** Hides every marker */
+	public void hideAll() {
+		visible.clear();
+	}
+
+	/** Shows every marker */
+	public void showAll() {
+		visible.set(0, markers.size());
+	}
+
+	/** Additionally shows the markers whose bits are set */
+	public void show(BitSet indices) {
+		visible.or(indices);
+	}
+
+	/** Keeps only the visible markers whose bits are set */
+	public void retain(BitSet indices) {
+		visible.and(indices);
+	}
+
+	public boolean isClicked(int index) {
+		return clicked.get(index);
+	}
+
+	/** Marks a single marker as clicked */
+	public void setClicked(int index) {
+		clicked.set(index);
+		((CommonMarker)markers.get(index)).setClicked(true);
+	}
+
+	/** Resets the click state of only those markers that are clicked */
+	public void clearClicked() {
+		for (int i = clicked.nextSetBit(0); i >= 0; i = clicked.nextSetBit(i + 1)) {
+			((CommonMarker)markers.get(i)).setClicked(false);
+		}
+		clicked.clear();
+	}
+
+	/** Draws the visible markers, skipping hidden ones without touching them */
+	@Override
+	public void draw() {
+		if (!bEnableDrawing) {
+			return;
+		}
+		for (int i = visible.nextSetBit(0); i >= 0; i = visible.nextSetBit(i + 1)) {
+			markers.get(i).draw(map);
+		}
+	}
+}
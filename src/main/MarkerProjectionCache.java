@@ -0,0 +1,169 @@
+package main;
+
+import java.util.List;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.mapdisplay.AbstractMapDisplay;
+import de.fhpotsdam.unfolding.marker.Marker;
+
+/** Caches the projected positions of a list of point markers
+  * The map projection (the trigonometric part) is evaluated once per marker.
+  * Object and screen positions are then derived with a plain affine transform,
+  * and only recomputed when the zoom or pan transform of the map changes.
+  * @author: Yufei Hu
+  * */
+public class MarkerProjectionCache {
+
+	private final List<Marker> markers;
+
+	// Projected positions at zoom 0, independent of pan and zoom
+	private float[] innerX;
+	private float[] innerY;
+
+	// Positions on the map's outer canvas, as passed to CommonMarker.draw
+	private float[] objectX;
+	private float[] objectY;
+
+	// Positions on the screen, as used for hit-testing
+	private float[] screenX;
+	private float[] screenY;
+
+	// Set when the cached positions no longer match the marker locations
+	private boolean projectionStale = true;
+	private boolean transformStale = true;
+
+	// The map transform the cached positions were computed with
+	private double lastInnerOffsetX;
+	private double lastInnerOffsetY;
+	private float lastInnerScale;
+	private float lastInnerAngle;
+	private float lastOffsetX;
+	private float lastOffsetY;
+	private float lastScale;
+	private float lastAngle;
+
+	public MarkerProjectionCache(List<Marker> markers) {
+		this.markers = markers;
+		for (int i = 0; i < markers.size(); i++) {
+			Marker marker = markers.get(i);
+			if (marker instanceof CommonMarker) {
+				((CommonMarker)marker).setProjection(this, i);
+			}
+		}
+	}
+
+	/** Number of markers covered by this cache */
+	public int size() {
+		return markers.size();
+	}
+
+	/** Forces a full re-projection, e.g. after marker locations changed */
+	public void invalidate() {
+		projectionStale = true;
+	}
+
+	/** Brings the cached positions up to date with the current map transform.
+	  * This is cheap when nothing changed, so it can be called per marker.
+	  * */
+	public void validate(UnfoldingMap map) {
+		AbstractMapDisplay display = map.mapDisplay;
+		if (projectionStale) {
+			project(display);
+			projectionStale = false;
+			transformStale = true;
+		}
+		if (transformStale || transformChanged(display)) {
+			transform(display);
+			transformStale = false;
+		}
+	}
+
+	public float getObjectX(int index) {
+		return objectX[index];
+	}
+
+	public float getObjectY(int index) {
+		return objectY[index];
+	}
+
+	public float getScreenX(int index) {
+		return screenX[index];
+	}
+
+	public float getScreenY(int index) {
+		return screenY[index];
+	}
+
+	/** Runs the map projection for every marker */
+	private void project(AbstractMapDisplay display) {
+		int n = markers.size();
+		if (innerX == null || innerX.length != n) {
+			innerX = new float[n];
+			innerY = new float[n];
+			objectX = new float[n];
+			objectY = new float[n];
+			screenX = new float[n];
+			screenY = new float[n];
+		}
+		for (int i = 0; i < n; i++) {
+			float[] inner = display.getInnerObjectFromLocation(markers.get(i).getLocation());
+			innerX[i] = inner[0];
+			innerY[i] = inner[1];
+		}
+	}
+
+	private boolean transformChanged(AbstractMapDisplay display) {
+		return display.innerOffsetX != lastInnerOffsetX
+				|| display.innerOffsetY != lastInnerOffsetY
+				|| display.innerScale != lastInnerScale
+				|| display.innerAngle != lastInnerAngle
+				|| display.offsetX != lastOffsetX
+				|| display.offsetY != lastOffsetY
+				|| display.scale != lastScale
+				|| display.angle != lastAngle;
+	}
+
+	/** The affine transform from projected zoom 0 positions to the map's
+	  * outer canvas, as {a, b, c, d, e, f} with x' = a x + b y + c and
+	  * y' = d x + e y + f, derived from three reference points
+	  * */
+	static float[] innerToObject(AbstractMapDisplay display) {
+		float[] o = display.getObjectFromInnerObjectPosition(0, 0);
+		float[] ox = display.getObjectFromInnerObjectPosition(1, 0);
+		float[] oy = display.getObjectFromInnerObjectPosition(0, 1);
+		return new float[] {ox[0] - o[0], oy[0] - o[0], o[0], ox[1] - o[1], oy[1] - o[1], o[1]};
+	}
+
+	/** Derives the affine inner->object and object->screen transforms from
+	  * three reference points and applies them to every cached position
+	  * */
+	private void transform(AbstractMapDisplay display) {
+		lastInnerOffsetX = display.innerOffsetX;
+		lastInnerOffsetY = display.innerOffsetY;
+		lastInnerScale = display.innerScale;
+		lastInnerAngle = display.innerAngle;
+		lastOffsetX = display.offsetX;
+		lastOffsetY = display.offsetY;
+		lastScale = display.scale;
+		lastAngle = display.angle;
+
+		float[] m = innerToObject(display);
+		float a = m[0], b = m[1], c = m[2];
+		float d = m[3], e = m[4], f = m[5];
+
+		float[] s = display.getScreenFromObjectPosition(0, 0);
+		float[] sx = display.getScreenFromObjectPosition(1, 0);
+		float[] sy = display.getScreenFromObjectPosition(0, 1);
+		float sa = sx[0] - s[0], sb = sy[0] - s[0], sc = s[0];
+		float sd = sx[1] - s[1], se = sy[1] - s[1], sf = s[1];
+
+		for (int i = 0; i < innerX.length; i++) {
+			float x = a * innerX[i] + b * innerY[i] + c;
+			float y = d * innerX[i] + e * innerY[i] + f;
+			objectX[i] = x;
+			objectY[i] = y;
+			screenX[i] = sa * x + sb * y + sc;
+			screenY[i] = sd * x + se * y + sf;
+		}
+	}
+}
@@ -1,42 +1,59 @@
-package main;
-
-import java.util.List;
-
-import de.fhpotsdam.unfolding.data.PointFeature;
-import de.fhpotsdam.unfolding.geo.Location;
-import de.fhpotsdam.unfolding.marker.Marker;
-import de.fhpotsdam.unfolding.utils.ScreenPosition;
-import main.CityMarker;
-import main.EarthquakeCityMap;
-import processing.core.PGraphics;
-
-/** Implements a visual marker for ocean earthquakes on an earthquake map
-  * @author: Yufei Hu
-  * */
-public class OceanQuakeMarker extends EarthquakeMarker {
-	
-	public OceanQuakeMarker(PointFeature quake) {
-		super(quake);
-		isOnLand = false;
-	}
-
-	@Override
-	public void drawEarthquake(PGraphics pg, float x, float y) {
-		pg.rect(x-radius, y-radius, 2*radius, 2*radius);
-		if (clicked) {
-			List<Marker> cityMarkers = EarthquakeCityMap.getCityMarkers();
-			double radiusThreat = threatCircle();
-			Location centerQuake = getLocation();
-			pg.strokeWeight(2);
-			pg.stroke(0);
-			for (Marker cityMarker : cityMarkers) {
-				if (EarthquakeCityMap.isInsideThreatCircle(cityMarker, radiusThreat, centerQuake)) {
-					ScreenPosition posCity = ((CityMarker) cityMarker).getScreenPosition(EarthquakeCityMap.getMap());
-					pg.line(x, y, posCity.x - 200, posCity.y - 50);
-				}
-			}
-		} else {
-			pg.noStroke();
-		}
-	}
-}
+package main;
+
+import java.util.BitSet;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.marker.Marker;
+import main.CityMarker;
+import main.EarthquakeCityMap;
+import processing.core.PGraphics;
+
+/** Implements a visual marker for ocean earthquakes on an earthquake map
+  * @author: Yufei Hu
+  * */
+public class OceanQuakeMarker extends EarthquakeMarker {
+	
+	private static final int[] NO_CITIES = new int[0];
+	
+	// Indices of the cities within the threat circle, found when clicked
+	private int[] threatenedCities = NO_CITIES;
+	
+	public OceanQuakeMarker(PointFeature quake) {
+		super(quake);
+		isOnLand = false;
+	}
+	
+	/** Finds the threatened cities once when the quake gets clicked */
+	@Override
+	public void setClicked(boolean state) {
+		super.setClicked(state);
+		if (!state) {
+			threatenedCities = NO_CITIES;
+			return;
+		}
+		BitSet threatened = EarthquakeCityMap.getCityKernel().threatened(this);
+		threatenedCities = new int[threatened.cardinality()];
+		for (int i = threatened.nextSetBit(0), k = 0; i >= 0; i = threatened.nextSetBit(i + 1)) {
+			threatenedCities[k++] = i;
+		}
+	}
+
+	@Override
+	public void drawEarthquake(PGraphics pg, float x, float y) {
+		pg.rect(x-radius, y-radius, 2*radius, 2*radius);
+		if (clicked) {
+			List<Marker> cityMarkers = EarthquakeCityMap.getCityMarkers();
+			UnfoldingMap map = EarthquakeCityMap.getMap();
+			pg.strokeWeight(2);
+			pg.stroke(0);
+			for (int i = 0; i < threatenedCities.length; i++) {
+				CityMarker city = (CityMarker) cityMarkers.get(threatenedCities[i]);
+				pg.line(x, y, city.getScreenX(map) - 200, city.getScreenY(map) - 50);
+			}
+		} else {
+			pg.noStroke();
+		}
+	}
+}
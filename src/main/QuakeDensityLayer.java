@@ -0,0 +1,201 @@
+package main;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.utils.ScreenPosition;
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/** Magnitude-weighted kernel density of the earthquakes on a lat/lon grid
+  * Each quake adds a truncated Gaussian footprint to the grid, and removing
+  * it subtracts the same footprint, so the grid is never recomputed from
+  * the whole catalog. The grid is colored into one Mercator texture that is
+  * rebuilt only after a change and drawn as a single image, so the cost of
+  * a frame does not depend on the number of quakes.
+  * @author: Yufei Hu
+  * */
+public class QuakeDensityLayer {
+
+	// Grid resolution
+	public static final int CELLS_PER_DEGREE = 2;
+
+	// Kernel width, and the cutoff of the footprint in standard deviations
+	private static final double KERNEL_SIGMA_KM = 150;
+	private static final double KERNEL_CUTOFF = 3;
+
+	// Latitude limit of the Web Mercator maps
+	private static final float MAX_LAT = 85.0511f;
+
+	private static final double KM_PER_DEGREE = Math.PI * 6371.01 / 180;
+
+	private final int columns = 360 * CELLS_PER_DEGREE;
+	private final int rows = 180 * CELLS_PER_DEGREE;
+
+	// Density of cell (row, column) at density[row * columns + column], row 0 at the north pole
+	private final float[] density = new float[rows * columns];
+
+	// Kilometers per cell along a parallel, per row
+	private final double[] rowKmPerCell = new double[rows];
+
+	// Grid row shown by each texture row, the texture being square in Mercator space
+	private final int[] textureRow;
+
+	private final PImage texture;
+	private boolean textureDirty = true;
+	private int count = 0;
+
+	public QuakeDensityLayer(PApplet p) {
+		for (int r = 0; r < rows; r++) {
+			rowKmPerCell[r] = KM_PER_DEGREE * Math.cos(Math.toRadians(cellLat(r))) / CELLS_PER_DEGREE;
+		}
+		textureRow = new int[columns];
+		double maxY = Math.log(Math.tan(Math.PI / 4 + Math.toRadians(MAX_LAT) / 2));
+		for (int y = 0; y < columns; y++) {
+			double mercatorY = maxY * (1 - 2 * (y + 0.5) / columns);
+			double lat = Math.toDegrees(Math.atan(Math.sinh(mercatorY)));
+			textureRow[y] = Math.min(rows - 1, (int)((90 - lat) * CELLS_PER_DEGREE));
+		}
+		texture = p.createImage(columns, columns, PApplet.ARGB);
+	}
+
+	/** Adds the footprint of a quake */
+	public void add(EarthquakeMarker quake) {
+		add(quake.getLocation().getLat(), quake.getLocation().getLon(), quake.getMagnitude());
+	}
+
+	/** Subtracts the footprint of a quake added before, e.g. when it ages out */
+	public void remove(EarthquakeMarker quake) {
+		remove(quake.getLocation().getLat(), quake.getLocation().getLon(), quake.getMagnitude());
+	}
+
+	public void add(float lat, float lon, float magnitude) {
+		stamp(lat, lon, weightOf(magnitude));
+		count++;
+	}
+
+	public void remove(float lat, float lon, float magnitude) {
+		stamp(lat, lon, -weightOf(magnitude));
+		count--;
+	}
+
+	/** Weight of a quake, never negative, as feeds do report magnitudes below zero */
+	private static float weightOf(float magnitude) {
+		return Math.max(0, magnitude);
+	}
+
+	/** Number of quakes in the grid */
+	public int size() {
+		return count;
+	}
+
+	/** Density at a location */
+	public float getDensity(float lat, float lon) {
+		return density[cellRow(lat) * columns + cellColumn(lon)];
+	}
+
+	/** Draws the density texture over the whole map, rebuilding it first if it changed */
+	public void draw(PGraphics pg, UnfoldingMap map) {
+		if (textureDirty) {
+			updateTexture();
+		}
+		ScreenPosition topLeft = map.getScreenPosition(new Location(MAX_LAT, -180));
+		ScreenPosition bottomRight = map.getScreenPosition(new Location(-MAX_LAT, 180));
+		pg.image(texture, topLeft.x, topLeft.y, bottomRight.x - topLeft.x, bottomRight.y - topLeft.y);
+	}
+
+	/** Adds weight times the kernel to every cell within the cutoff of the location.
+	  * Along a row the Gaussian is advanced by a multiplicative recurrence, so
+	  * each row costs three exp calls however many cells it covers. Adding and
+	  * subtracting a quake evaluate exactly the same values, so a removal
+	  * cancels its addition up to float rounding. The grid itself is not
+	  * clamped, so that every removal mirrors its addition exactly.
+	  * */
+	private void stamp(float lat, float lon, float weight) {
+		double cutoffKm = KERNEL_CUTOFF * KERNEL_SIGMA_KM;
+		double cutoffSq = cutoffKm * cutoffKm;
+		double scale = -1 / (2 * KERNEL_SIGMA_KM * KERNEL_SIGMA_KM);
+		int centerRow = cellRow(lat);
+		int centerColumn = cellColumn(lon);
+		// offset of the location from the center of its cell, in cells
+		double offset = (cellLon(centerColumn) - lon) * CELLS_PER_DEGREE;
+		int rowRadius = (int)Math.ceil(cutoffKm / (KM_PER_DEGREE / CELLS_PER_DEGREE));
+		int fromRow = Math.max(0, centerRow - rowRadius);
+		int toRow = Math.min(rows - 1, centerRow + rowRadius);
+		for (int r = fromRow; r <= toRow; r++) {
+			double dy = (cellLat(r) - lat) * KM_PER_DEGREE;
+			double restSq = cutoffSq - dy * dy;
+			if (restSq < 0) {
+				continue;
+			}
+			// cell k of the row is (offset + k) * step km east of the location,
+			// and the footprint widens in cells towards the poles
+			double step = Math.max(rowKmPerCell[r], 1e-3);
+			double rest = Math.min(Math.sqrt(restSq) / step, columns);
+			int fromK = (int)Math.ceil(-rest - offset);
+			int toK = Math.min((int)Math.floor(rest - offset), fromK + columns - 1);
+			double dx = (offset + fromK) * step;
+			double value = weight * Math.exp((dx * dx + dy * dy) * scale);
+			double ratio = Math.exp((2 * dx * step + step * step) * scale);
+			double ratioStep = Math.exp(2 * step * step * scale);
+			int rowBase = r * columns;
+			for (int k = fromK; k <= toK; k++) {
+				int c = (centerColumn + k) % columns;
+				c = c < 0 ? c + columns : c;
+				int index = rowBase + c;
+				density[index] += (float)value;
+				value *= ratio;
+				ratio *= ratioStep;
+			}
+		}
+		textureDirty = true;
+	}
+
+	/** Colors the grid into the texture, scaled to the current maximum, with
+	  * cells left slightly below zero by rounding shown as empty
+	  * */
+	private void updateTexture() {
+		float max = 0;
+		for (int i = 0; i < density.length; i++) {
+			max = Math.max(max, density[i]);
+		}
+		texture.loadPixels();
+		int[] pixels = texture.pixels;
+		for (int y = 0; y < columns; y++) {
+			int base = textureRow[y] * columns;
+			for (int x = 0; x < columns; x++) {
+				pixels[y * columns + x] = max > 0 ? colorOf(Math.max(0, density[base + x]) / max) : 0;
+			}
+		}
+		texture.updatePixels();
+		textureDirty = false;
+	}
+
+	/** Transparent through yellow to red, with a square root ramp so sparse areas still show */
+	private static int colorOf(float value) {
+		if (value < 1e-3f) {
+			return 0;
+		}
+		float t = (float)Math.sqrt(value);
+		int alpha = (int)(60 + 160 * t);
+		int green = (int)(230 * (1 - t));
+		return alpha << 24 | 255 << 16 | green << 8;
+	}
+
+	private int cellRow(float lat) {
+		return Math.max(0, Math.min(rows - 1, (int)((90 - lat) * CELLS_PER_DEGREE)));
+	}
+
+	private int cellColumn(float lon) {
+		int c = (int)Math.floor((lon + 180) * CELLS_PER_DEGREE) % columns;
+		return c < 0 ? c + columns : c;
+	}
+
+	private static double cellLat(int r) {
+		return 90 - (r + 0.5) / CELLS_PER_DEGREE;
+	}
+
+	private static double cellLon(int c) {
+		return -180 + (c + 0.5) / CELLS_PER_DEGREE;
+	}
+}
@@ -0,0 +1,382 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.geo.Location;
+import parsing.MultiFeedLoader;
+import parsing.ParseFeed;
+
+/** Append-only store of every quake parsed so far, kept across runs
+  * Quakes are fixed-width binary records in one file per UTC month of
+  * their origin time. The month files form the time index: a range query
+  * maps only the months it overlaps and scans their records in place.
+  * Each record keeps the land/ocean classification and country of the
+  * quake, so stored quakes never go through the country lookup again.
+  * Events are deduplicated by a 64-bit hash of their feed id.
+  * @author: Yufei Hu
+  * */
+public class QuakeHistory implements Closeable {
+
+	// File header: magic, version, record size, and the number of countries
+	// the ids refer to and a hash of their names in order. Version 1 files
+	// have no hash, so their country ids are never trusted.
+	// A file written against other countries is remapped when opened.
+	private static final int MAGIC = 0x514B4853;
+	private static final short VERSION = 2;
+	private static final short VERSION_WITHOUT_HASH = 1;
+	private static final int HEADER_SIZE = 16;
+
+	// Record: id hash, time, lat, lon, magnitude, depth, country, flags, padding
+	static final int RECORD_SIZE = 36;
+	private static final int TIME = 8;
+	private static final int LAT = 16;
+	private static final int LON = 20;
+	private static final int MAGNITUDE = 24;
+	private static final int DEPTH = 28;
+	private static final int COUNTRY = 32;
+	private static final int FLAGS = 34;
+	private static final int FLAG_LAND = 1;
+
+	private static final String SUFFIX = ".qkh";
+
+	private final File directory;
+	private final CountryGeometry countries;
+	private final int countriesHash;
+
+	// Month partitions by the UTC start of their month
+	private final TreeMap<Long, Partition> partitions = new TreeMap<Long, Partition>();
+
+	// Stored country id and flags by id hash, built on the first append
+	private Map<Long, Integer> stored;
+
+	public QuakeHistory(File directory, CountryGeometry countries) throws IOException {
+		this.directory = directory;
+		this.countries = countries;
+		this.countriesHash = hashCountries(countries);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SUFFIX)) {
+				long month = parseMonth(name.substring(0, name.length() - SUFFIX.length()));
+				if (month != Long.MIN_VALUE) {
+					partitions.put(month, new Partition(file));
+				}
+			}
+		}
+	}
+
+	/** Stable 64-bit FNV-1a hash of a feed id */
+	public static long hashId(String id) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** Hash of the country names in id order, telling apart country files
+	  * with the same number of countries
+	  * */
+	static int hashCountries(CountryGeometry countries) {
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < countries.size(); i++) {
+			names.append(countries.getName(i)).append('\n');
+		}
+		long hash = hashId(names.toString());
+		return (int)(hash ^ (hash >>> 32));
+	}
+
+	/** Total number of stored quakes */
+	public int size() {
+		int size = 0;
+		for (Partition partition : partitions.values()) {
+			size += partition.count;
+		}
+		return size;
+	}
+
+	/** Classifies the parsed quakes and appends those not stored yet.
+	  * Every feature gets a "land" property, and a "country" property when
+	  * on land, taken from the store for known events and from the country
+	  * lookup for new ones. Features without a time are classified only.
+	  * @return the number of quakes appended
+	  * */
+	public int record(List<PointFeature> features) throws IOException {
+		if (stored == null) {
+			indexIds();
+		}
+		Map<Long, ByteBuffer> pending = new TreeMap<Long, ByteBuffer>();
+		int appended = 0;
+		for (PointFeature feature : features) {
+			Location location = feature.getLocation();
+			long hash = hashId(getKey(feature));
+			Integer known = stored.get(hash);
+			int country;
+			if (known != null) {
+				country = known;
+			} else {
+				country = countries.locate(location.getLat(), location.getLon());
+			}
+			setLocation(feature, country);
+
+			Object time = feature.getProperty("time");
+			if (known != null || time == null) {
+				continue;
+			}
+			long month = monthOf(((Number)time).longValue());
+			ByteBuffer buffer = pending.get(month);
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate(features.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				pending.put(month, buffer);
+			}
+			buffer.putLong(hash);
+			buffer.putLong(((Number)time).longValue());
+			buffer.putFloat(location.getLat());
+			buffer.putFloat(location.getLon());
+			buffer.putFloat(Float.parseFloat(feature.getProperty("magnitude").toString()));
+			buffer.putFloat(Float.parseFloat(feature.getProperty("depth").toString()));
+			buffer.putShort((short)country);
+			buffer.put((byte)(country >= 0 ? FLAG_LAND : 0));
+			buffer.put((byte)0);
+			stored.put(hash, country);
+			appended++;
+		}
+
+		for (Map.Entry<Long, ByteBuffer> entry : pending.entrySet()) {
+			Partition partition = partitions.get(entry.getKey());
+			if (partition == null) {
+				partition = new Partition(new File(directory, formatMonth(entry.getKey()) + SUFFIX));
+				partitions.put(entry.getKey(), partition);
+			}
+			ByteBuffer buffer = entry.getValue();
+			buffer.flip();
+			partition.append(buffer);
+		}
+		return appended;
+	}
+
+	/** Loads the stored quakes with a time in [from, to), newest first,
+	  * leaving out the events of the given features, which are usually the
+	  * current feeds. The features carry the properties set by ParseFeed
+	  * plus "land" and "country"; titles are rebuilt from the magnitude and
+	  * the country or position, as records do not keep the feed's title.
+	  * */
+	public List<PointFeature> load(long from, long to, List<PointFeature> skip) {
+		Set<Long> skipped = new HashSet<Long>(skip.size() * 2);
+		for (PointFeature feature : skip) {
+			skipped.add(hashId(getKey(feature)));
+		}
+
+		long now = System.currentTimeMillis();
+		List<PointFeature> features = new ArrayList<PointFeature>();
+		// the month containing from starts at or before it
+		Long first = partitions.floorKey(from);
+		for (Partition partition : partitions.subMap(first != null ? first : from, true, to, false).descendingMap().values()) {
+			ByteBuffer records = partition.records();
+			for (int r = partition.count - 1; r >= 0; r--) {
+				int base = HEADER_SIZE + r * RECORD_SIZE;
+				long time = records.getLong(base + TIME);
+				if (time < from || time >= to || skipped.contains(records.getLong(base))) {
+					continue;
+				}
+				float lat = records.getFloat(base + LAT);
+				float lon = records.getFloat(base + LON);
+				float magnitude = records.getFloat(base + MAGNITUDE);
+				int country = (records.get(base + FLAGS) & FLAG_LAND) == 0 ? -1 : records.getShort(base + COUNTRY);
+
+				PointFeature feature = new PointFeature(new Location(lat, lon));
+				feature.putProperty("magnitude", magnitude);
+				feature.putProperty("depth", records.getFloat(base + DEPTH));
+				feature.putProperty("time", time);
+				feature.putProperty("age", ParseFeed.getAge(now - time));
+				setLocation(feature, country);
+				String place = country >= 0 ? countries.getName(country) : Math.round(lat * 100) / 100f + ", " + Math.round(lon * 100) / 100f;
+				feature.putProperty("title", "M " + magnitude + " - " + place);
+				features.add(feature);
+			}
+		}
+		// records are in append order within a month
+		Collections.sort(features, MultiFeedLoader.NEWEST_FIRST);
+		return features;
+	}
+
+	public void close() throws IOException {
+		for (Partition partition : partitions.values()) {
+			partition.close();
+		}
+		partitions.clear();
+	}
+
+	private void setLocation(PointFeature feature, int country) {
+		feature.putProperty("land", country >= 0);
+		if (country >= 0) {
+			feature.putProperty("country", countries.getName(country));
+		}
+	}
+
+	/** The feed id, or the position and time for features without one */
+	private static String getKey(PointFeature feature) {
+		if (feature.getId() != null) {
+			return feature.getId();
+		}
+		Location location = feature.getLocation();
+		return location.getLat() + ":" + location.getLon() + ":" + feature.getProperty("time");
+	}
+
+	private void indexIds() {
+		stored = new HashMap<Long, Integer>(size() * 2 + 16);
+		for (Partition partition : partitions.values()) {
+			ByteBuffer records = partition.records();
+			for (int r = 0; r < partition.count; r++) {
+				int base = HEADER_SIZE + r * RECORD_SIZE;
+				int country = (records.get(base + FLAGS) & FLAG_LAND) == 0 ? -1 : records.getShort(base + COUNTRY);
+				stored.put(records.getLong(base), country);
+			}
+		}
+	}
+
+	private static long monthOf(long time) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(time);
+		calendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), 1, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private static String formatMonth(long month) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(month);
+		return String.format("%04d-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+	}
+
+	/** Parses a "yyyy-MM" file name, returning Long.MIN_VALUE for other names */
+	private static long parseMonth(String name) {
+		if (name.length() != 7 || name.charAt(4) != '-') {
+			return Long.MIN_VALUE;
+		}
+		try {
+			int year = Integer.parseInt(name.substring(0, 4));
+			int month = Integer.parseInt(name.substring(5, 7));
+			Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+			calendar.clear();
+			calendar.set(year, month - 1, 1);
+			return calendar.getTimeInMillis();
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/** One month file, memory-mapped for reading */
+	private class Partition {
+
+		private final File file;
+		private RandomAccessFile access;
+		private MappedByteBuffer mapped;
+		private int count;
+
+		Partition(File file) throws IOException {
+			this.file = file;
+			access = new RandomAccessFile(file, "rw");
+			FileChannel channel = access.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				channel.truncate(0);
+				writeHeader(channel);
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			short version = header.getShort(4);
+			if (header.getInt(0) != MAGIC || (version != VERSION && version != VERSION_WITHOUT_HASH)
+					|| header.getShort(6) != RECORD_SIZE) {
+				throw new IOException("Not a quake history file: " + file);
+			}
+			// drops a record left incomplete by an interrupted append
+			count = (int)((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+			channel.truncate(HEADER_SIZE + (long)count * RECORD_SIZE);
+			if (version != VERSION || header.getInt(8) != countries.size() || header.getInt(12) != countriesHash) {
+				relocate(channel);
+			}
+			map();
+		}
+
+		private void writeHeader(FileChannel channel) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putShort(VERSION).putShort((short)RECORD_SIZE).putInt(countries.size()).putInt(countriesHash);
+			header.flip();
+			channel.write(header, 0);
+		}
+
+		/** Classifies the records again against the current countries. The
+		  * header is written last, so an interrupted rewrite is done again.
+		  * */
+		private void relocate(FileChannel channel) throws IOException {
+			ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			long position = HEADER_SIZE;
+			while (records.hasRemaining()) {
+				position += channel.read(records, position);
+			}
+			for (int r = 0; r < count; r++) {
+				int base = r * RECORD_SIZE;
+				int country = countries.locate(records.getFloat(base + LAT), records.getFloat(base + LON));
+				records.putShort(base + COUNTRY, (short)country);
+				records.put(base + FLAGS, (byte)(country >= 0 ? FLAG_LAND : 0));
+			}
+			records.flip();
+			position = HEADER_SIZE;
+			while (records.hasRemaining()) {
+				position += channel.write(records, position);
+			}
+			writeHeader(channel);
+		}
+
+		ByteBuffer records() {
+			return mapped;
+		}
+
+		void append(ByteBuffer buffer) throws IOException {
+			FileChannel channel = access.getChannel();
+			long position = HEADER_SIZE + (long)count * RECORD_SIZE;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			count = (int)((position - HEADER_SIZE) / RECORD_SIZE);
+			map();
+		}
+
+		private void map() throws IOException {
+			mapped = access.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long)count * RECORD_SIZE);
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		void close() throws IOException {
+			mapped = null;
+			access.close();
+		}
+
+		@Override
+		public String toString() {
+			return file.getName() + " (" + count + " quakes)";
+		}
+	}
+}
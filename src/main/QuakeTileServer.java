@@ -0,0 +1,501 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.fhpotsdam.unfolding.data.Feature;
+import de.fhpotsdam.unfolding.data.GeoJSONReader;
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.utils.MapUtils;
+import parsing.MultiFeedLoader;
+import parsing.ParseFeed;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+
+/** Serves the quake and city markers as transparent z/x/y overlay tiles
+  * Tiles are Web Mercator, 256 pixels square, as used by browser map
+  * libraries. They are rendered headless, without a sketch window, by the
+  * markers' own drawMarker into an off-screen Java2D canvas per thread, so
+  * they show the same depth colors, land circles, ocean squares and age
+  * crosses as the map. Requests are rendered in parallel on a pool with a
+  * thread per core, and the PNGs are kept in an LRU cache. A new quake list
+  * only evicts the tiles that the quakes which came or went overlap.
+  *
+  * Run as a program it loads the feeds and serves
+  * http://localhost:8080/tiles/{z}/{x}/{y}.png:
+  *   java main.QuakeTileServer [--port 8080] [--feeds url,url] [--cities file]
+  *       [--countries file] [--cache-mb 256] [--refresh-seconds 300] [--prerender-zoom 3]
+  * @author: Yufei Hu
+  * */
+public class QuakeTileServer {
+
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_ZOOM = 18;
+
+	// Mercator is cut off at the latitude that makes the world square
+	private static final double MAX_LATITUDE = 85.0511287798;
+
+	// How far a marker reaches from its center in pixels, beyond its radius:
+	// the age cross and its stroke for quakes, the triangle for cities
+	private static final float CROSS_REACH = 4;
+	private static final float CITY_REACH = 6;
+
+	/** An immutable set of markers to render, with their positions on the
+	  * zoom 0 Mercator square in [0, 1] and how far they reach in pixels.
+	  * Cities come after the quakes, so they are drawn on top as on the map.
+	  * */
+	private static class Snapshot {
+		final List<Marker> markers;
+		final int numQuakes;
+		final float[] u;
+		final float[] v;
+		final float[] reach;
+		final float maxReach;
+
+		Snapshot(List<Marker> quakeMarkers, List<Marker> cityMarkers) {
+			markers = new ArrayList<Marker>(quakeMarkers.size() + cityMarkers.size());
+			markers.addAll(quakeMarkers);
+			markers.addAll(cityMarkers);
+			numQuakes = quakeMarkers.size();
+			int n = markers.size();
+			u = new float[n];
+			v = new float[n];
+			reach = new float[n];
+			float max = 0;
+			for (int i = 0; i < n; i++) {
+				Location location = markers.get(i).getLocation();
+				u[i] = mercatorX(location.getLon());
+				v[i] = mercatorY(location.getLat());
+				reach[i] = reachOf(markers.get(i));
+				max = Math.max(max, reach[i]);
+			}
+			maxReach = max;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+	private final List<Marker> cityMarkers;
+
+	// Rendered tiles by key, least recently used first, and their total size
+	private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<Long, byte[]>(1024, 0.75f, true);
+	private final long maxCacheBytes;
+	private long cacheBytes = 0;
+
+	// Tile served where there are no markers
+	private final byte[] emptyTile;
+
+	// One canvas per rendering thread
+	private final ThreadLocal<PGraphics> canvases = new ThreadLocal<PGraphics>() {
+		@Override
+		protected PGraphics initialValue() {
+			PGraphicsJava2D canvas = new PGraphicsJava2D();
+			canvas.setPrimary(false);
+			canvas.setSize(TILE_SIZE, TILE_SIZE);
+			return canvas;
+		}
+	};
+
+	private final ExecutorService pool;
+	private HttpServer server;
+
+	/** The markers must not belong to a sketch, as their click and hover
+	  * state would show in the tiles
+	  * */
+	public QuakeTileServer(List<Marker> cityMarkers, List<Marker> quakeMarkers, long maxCacheBytes) {
+		this.cityMarkers = new ArrayList<Marker>(cityMarkers);
+		this.maxCacheBytes = maxCacheBytes;
+		snapshot = new Snapshot(quakeMarkers, this.cityMarkers);
+		emptyTile = encode(canvases.get(), null, 0, 0, 0);
+		pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tile-renderer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Replaces the quakes, evicting the cached tiles that any quake which
+	  * came or went reaches into; quakes that stay unchanged keep their tiles
+	  * @return the number of tiles evicted
+	  * */
+	public int setQuakes(List<Marker> quakeMarkers) {
+		Snapshot previous = snapshot;
+		Snapshot next = new Snapshot(quakeMarkers, cityMarkers);
+
+		// multiset difference on everything that shows in a tile
+		HashMap<String, Integer> before = new HashMap<String, Integer>();
+		for (int i = 0; i < previous.numQuakes; i++) {
+			String key = renderKey(previous.markers.get(i));
+			Integer count = before.get(key);
+			before.put(key, count == null ? 1 : count + 1);
+		}
+		List<float[]> changed = new ArrayList<float[]>();
+		for (int i = 0; i < next.numQuakes; i++) {
+			String key = renderKey(next.markers.get(i));
+			Integer count = before.get(key);
+			if (count == null) {
+				changed.add(new float[] {next.u[i], next.v[i], next.reach[i]});
+			} else if (count == 1) {
+				before.remove(key);
+			} else {
+				before.put(key, count - 1);
+			}
+		}
+		for (int i = 0; i < previous.numQuakes; i++) {
+			if (before.containsKey(renderKey(previous.markers.get(i)))) {
+				changed.add(new float[] {previous.u[i], previous.v[i], previous.reach[i]});
+			}
+		}
+
+		int evicted = 0;
+		synchronized (cache) {
+			snapshot = next;
+			for (float[] quake : changed) {
+				for (int z = 0; z <= MAX_ZOOM; z++) {
+					int n = 1 << z;
+					float world = (float)n * TILE_SIZE;
+					int x0 = (int)Math.floor((quake[0] * world - quake[2]) / TILE_SIZE);
+					int x1 = (int)Math.floor((quake[0] * world + quake[2]) / TILE_SIZE);
+					int y0 = Math.max(0, (int)Math.floor((quake[1] * world - quake[2]) / TILE_SIZE));
+					int y1 = Math.min(n - 1, (int)Math.floor((quake[1] * world + quake[2]) / TILE_SIZE));
+					for (int x = x0; x <= x1; x++) {
+						for (int y = y0; y <= y1; y++) {
+							byte[] png = cache.remove(key(z, (x % n + n) % n, y));
+							if (png != null) {
+								cacheBytes -= png.length;
+								evicted++;
+							}
+						}
+					}
+				}
+			}
+		}
+		return evicted;
+	}
+
+	/** The PNG of a tile, from the cache or rendered by the calling thread */
+	public byte[] getTile(int z, int x, int y) {
+		long key = key(z, x, y);
+		synchronized (cache) {
+			byte[] png = cache.get(key);
+			if (png != null) {
+				return png;
+			}
+		}
+		Snapshot rendered = snapshot;
+		byte[] png = encode(canvases.get(), rendered, z, x, y);
+		synchronized (cache) {
+			// a tile of quakes replaced while it was rendered is not kept
+			if (rendered == snapshot && !cache.containsKey(key)) {
+				cache.put(key, png);
+				cacheBytes += png.length;
+				Iterator<Map.Entry<Long, byte[]>> eldest = cache.entrySet().iterator();
+				while (cacheBytes > maxCacheBytes && eldest.hasNext()) {
+					cacheBytes -= eldest.next().getValue().length;
+					eldest.remove();
+				}
+			}
+		}
+		return png;
+	}
+
+	/** Renders every tile of zoom levels 0 to maxZoom that has markers, in
+	  * parallel on the rendering pool, so the first requests hit the cache
+	  * */
+	public void prerender(int maxZoom) throws InterruptedException {
+		Snapshot current = snapshot;
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int z = 0; z <= maxZoom; z++) {
+			final int zoom = z;
+			int n = 1 << z;
+			boolean[] occupied = new boolean[n * n];
+			for (int i = 0; i < current.u.length; i++) {
+				int x = Math.min(n - 1, (int)(current.u[i] * n));
+				int y = Math.min(n - 1, (int)(current.v[i] * n));
+				occupied[y * n + x] = true;
+			}
+			for (int t = 0; t < occupied.length; t++) {
+				if (occupied[t]) {
+					final int x = t % n;
+					final int y = t / n;
+					tasks.add(Executors.callable(new Runnable() {
+						public void run() {
+							getTile(zoom, x, y);
+						}
+					}));
+				}
+			}
+		}
+		pool.invokeAll(tasks);
+	}
+
+	/** Number of cached tiles and their total size in bytes */
+	public int getCachedTiles() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long getCachedBytes() {
+		synchronized (cache) {
+			return cacheBytes;
+		}
+	}
+
+	/** Serves the tiles at http://localhost:port/tiles/{z}/{x}/{y}.png,
+	  * rendering requests on the pool's threads
+	  * */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/tiles/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(pool);
+		server.start();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+		pool.shutdown();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		String[] parts = exchange.getRequestURI().getPath().split("/");
+		// "", "tiles", z, x, "y.png"
+		int z, x, y;
+		try {
+			if (parts.length != 5 || !parts[4].endsWith(".png")) {
+				throw new NumberFormatException();
+			}
+			z = Integer.parseInt(parts[2]);
+			x = Integer.parseInt(parts[3]);
+			y = Integer.parseInt(parts[4].substring(0, parts[4].length() - 4));
+		} catch (NumberFormatException e) {
+			sendError(exchange, 404, "Expected /tiles/{z}/{x}/{y}.png");
+			return;
+		}
+		if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+			sendError(exchange, 404, "No such tile");
+			return;
+		}
+		byte[] png = getTile(z, x, y);
+		exchange.getResponseHeaders().set("Content-Type", "image/png");
+		exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+		exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+		exchange.sendResponseHeaders(200, png.length);
+		OutputStream body = exchange.getResponseBody();
+		body.write(png);
+		body.close();
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/** Draws the markers reaching into a tile, in list order, and encodes it
+	  * as PNG; tiles without markers share the empty tile
+	  * */
+	private byte[] encode(PGraphics canvas, Snapshot markers, int z, int x, int y) {
+		List<Integer> inside = new ArrayList<Integer>();
+		float world = (float)(1 << z) * TILE_SIZE;
+		float left = (float)x * TILE_SIZE;
+		float top = (float)y * TILE_SIZE;
+		if (markers != null) {
+			// candidates by the widest reach, then exactly; the first and last
+			// columns also take markers across the antimeridian
+			float margin = markers.maxReach;
+			for (int i = 0; i < markers.u.length; i++) {
+				float py = markers.v[i] * world - top;
+				if (py < -margin || py > TILE_SIZE + margin) {
+					continue;
+				}
+				float px = markers.u[i] * world - left;
+				if (px < -margin && markers.u[i] * world + world - left <= TILE_SIZE + margin) {
+					px += world;
+				} else if (px > TILE_SIZE + margin && markers.u[i] * world - world - left >= -margin) {
+					px -= world;
+				}
+				float reach = markers.reach[i];
+				if (px >= -reach && px <= TILE_SIZE + reach && py >= -reach && py <= TILE_SIZE + reach) {
+					inside.add(i);
+				}
+			}
+			if (inside.isEmpty() && emptyTile != null) {
+				return emptyTile;
+			}
+		}
+		canvas.beginDraw();
+		canvas.clear();
+		for (int i : inside) {
+			float px = markers.u[i] * world - left;
+			if (px < -markers.reach[i]) {
+				px += world;
+			} else if (px > TILE_SIZE + markers.reach[i]) {
+				px -= world;
+			}
+			((CommonMarker)markers.markers.get(i)).drawMarker(canvas, px, markers.v[i] * world - top);
+		}
+		canvas.endDraw();
+		ByteArrayOutputStream png = new ByteArrayOutputStream(4096);
+		try {
+			ImageIO.write((BufferedImage)canvas.image, "png", png);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not encode tile " + z + "/" + x + "/" + y, e);
+		}
+		return png.toByteArray();
+	}
+
+	private static long key(int z, int x, int y) {
+		return ((long)z << 58) | ((long)x << 29) | y;
+	}
+
+	/** Everything about a quake that shows in a tile */
+	private static String renderKey(Marker marker) {
+		EarthquakeMarker quake = (EarthquakeMarker)marker;
+		Location location = quake.getLocation();
+		return location.getLat() + ":" + location.getLon() + ":" + quake.magnitude + ":" + quake.depth
+				+ ":" + quake.recent + ":" + quake.isOnLand;
+	}
+
+	private static float reachOf(Marker marker) {
+		if (marker instanceof EarthquakeMarker) {
+			return ((EarthquakeMarker)marker).radius + CROSS_REACH;
+		}
+		return CITY_REACH;
+	}
+
+	private static float mercatorX(double lon) {
+		return (float)((lon + 180) / 360);
+	}
+
+	private static float mercatorY(double lat) {
+		double phi = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+		return (float)((1 - Math.log(Math.tan(phi) + 1 / Math.cos(phi)) / Math.PI) / 2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 8080;
+		String[] feeds = {"https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/2.5_week.atom"};
+		String cityFile = "data/city-data.json";
+		String countryFile = "data/countries.geo.json";
+		long cacheBytes = 256L << 20;
+		int refreshSeconds = 300;
+		int prerenderZoom = 3;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("--port")) {
+				port = Integer.parseInt(value);
+			} else if (args[i].equals("--feeds")) {
+				feeds = value.split(",");
+			} else if (args[i].equals("--cities")) {
+				cityFile = value;
+			} else if (args[i].equals("--countries")) {
+				countryFile = value;
+			} else if (args[i].equals("--cache-mb")) {
+				cacheBytes = Long.parseLong(value) << 20;
+			} else if (args[i].equals("--refresh-seconds")) {
+				refreshSeconds = Integer.parseInt(value);
+			} else if (args[i].equals("--prerender-zoom")) {
+				prerenderZoom = Integer.parseInt(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		final CountryGeometry countries = new CountryGeometry(MapUtils.createSimpleMarkers(loadFeatures(countryFile)));
+		List<Marker> cityMarkers = new ArrayList<Marker>();
+		for (Feature city : loadFeatures(cityFile)) {
+			cityMarkers.add(new CityMarker(city));
+		}
+		final String[] sources = feeds;
+		final QuakeTileServer tiles = new QuakeTileServer(cityMarkers, loadQuakes(sources, countries), cacheBytes);
+		long start = System.nanoTime();
+		tiles.prerender(prerenderZoom);
+		System.out.println("Rendered " + tiles.getCachedTiles() + " tiles up to zoom " + prerenderZoom + " in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		tiles.start(port);
+		System.out.println("Serving http://localhost:" + port + "/tiles/{z}/{x}/{y}.png");
+
+		Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					int evicted = tiles.setQuakes(loadQuakes(sources, countries));
+					System.out.println("Feeds refreshed, " + evicted + " tiles evicted");
+				} catch (RuntimeException e) {
+					System.err.println("Could not refresh the feeds: " + e);
+				}
+			}
+		}, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+	}
+
+	/** Reads the features of a GeoJSON file without a sketch */
+	private static List<Feature> loadFeatures(String fileName) throws IOException {
+		String json = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
+		return GeoJSONReader.loadDataFromJSON(null, json);
+	}
+
+	/** Reads and merges the feeds into land and ocean quake markers, as the map does */
+	private static List<Marker> loadQuakes(String[] sources, CountryGeometry countries) {
+		List<List<PointFeature>> feeds = new ArrayList<List<PointFeature>>();
+		for (String source : sources) {
+			try {
+				InputStream input = source.contains("://") ? new URL(source).openStream() : new FileInputStream(source);
+				feeds.add(ParseFeed.parseEarthquake(input, source));
+			} catch (IOException e) {
+				throw new RuntimeException("Could not open " + source, e);
+			}
+		}
+		List<Marker> quakeMarkers = new ArrayList<Marker>();
+		for (PointFeature feature : MultiFeedLoader.merge(feeds)) {
+			Location location = feature.getLocation();
+			int country = countries.locate(location.getLat(), location.getLon());
+			if (country >= 0) {
+				feature.addProperty("country", countries.getName(country));
+				quakeMarkers.add(new LandQuakeMarker(feature));
+			} else {
+				quakeMarkers.add(new OceanQuakeMarker(feature));
+			}
+		}
+		return quakeMarkers;
+	}
+}
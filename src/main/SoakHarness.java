@@ -0,0 +1,488 @@
+package main;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import parsing.SyntheticFeeds;
+import processing.core.PApplet;
+import processing.event.KeyEvent;
+import processing.event.MouseEvent;
+
+/** Load and soak test of EarthquakeCityMap on synthetic feeds
+  * Runs the map on generated quake feeds and cities, drives it with synthetic
+  * mouse moves, clicks and wheel zooms, and regularly rewrites the feeds with
+  * the next hour of quakes and refreshes them, for as long as asked. It then
+  * reports frame-time and refresh-time percentiles, growth of the heap left
+  * after garbage collection, and GC pauses, once per report interval and for
+  * the whole run, and fails if the p99 frame time or the heap growth went
+  * over the given limits, or if the sketch has not drawn a frame within
+  * the startup time.
+  *
+  * The sketch needs a display; on a server run it under a virtual one:
+  *   xvfb-run java main.SoakHarness [--minutes 120] [--quakes 20000]
+  *       [--cities 2000] [--days 7] [--distribution plates|uniform] [--seed 1]
+  *       [--refresh-seconds 60] [--report-seconds 60] [--warmup-seconds 60]
+  *       [--startup-seconds 120] [--max-p99-ms 0] [--max-heap-growth-mb 0]
+  *       [--dir data/soak]
+  * @author: Yufei Hu
+  * */
+public class SoakHarness {
+
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long DAY = 24 * HOUR;
+
+	// Area of the map on the canvas, where the synthetic cursor moves
+	private static final int MAP_LEFT = 200;
+	private static final int MAP_TOP = 50;
+	private static final int MAP_WIDTH = 650;
+	private static final int MAP_HEIGHT = 600;
+
+	// Pace of the synthetic input: a move every MOVE_MILLIS, and a click and
+	// a wheel step every so many moves
+	private static final int MOVE_MILLIS = 20;
+	private static final int MOVES_PER_CLICK = 150;
+	private static final int MOVES_PER_WHEEL = 400;
+
+	/** Log-linear histogram of durations in microseconds, within about 3% */
+	static class Histogram {
+
+		private static final int SUB_BUCKETS = 32;
+
+		private final long[] counts = new long[64 + 58 * SUB_BUCKETS];
+		private long total;
+		private long sum;
+		private long max;
+
+		synchronized void record(long micros) {
+			counts[bucket(Math.max(0, micros))]++;
+			total++;
+			sum += micros;
+			max = Math.max(max, micros);
+		}
+
+		synchronized void add(Histogram other) {
+			synchronized (other) {
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] += other.counts[i];
+				}
+				total += other.total;
+				sum += other.sum;
+				max = Math.max(max, other.max);
+			}
+		}
+
+		synchronized void clear() {
+			Arrays.fill(counts, 0);
+			total = 0;
+			sum = 0;
+			max = 0;
+		}
+
+		synchronized long count() {
+			return total;
+		}
+
+		synchronized long sum() {
+			return sum;
+		}
+
+		synchronized long max() {
+			return max;
+		}
+
+		/** The value at the given quantile, e.g. 0.99, or 0 if empty */
+		synchronized long percentile(double quantile) {
+			long target = (long)Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= Math.max(1, target)) {
+					return Math.min(max, upperBound(i));
+				}
+			}
+			return 0;
+		}
+
+		private static int bucket(long value) {
+			if (value < 64) {
+				return (int)value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int)(value >> (exponent - 5)) & (SUB_BUCKETS - 1);
+			return 64 + (exponent - 6) * SUB_BUCKETS + sub;
+		}
+
+		private static long upperBound(int bucket) {
+			if (bucket < 64) {
+				return bucket;
+			}
+			int exponent = (bucket - 64) / SUB_BUCKETS + 6;
+			int sub = (bucket - 64) % SUB_BUCKETS;
+			return ((long)(SUB_BUCKETS + sub + 1) << (exponent - 5)) - 1;
+		}
+	}
+
+	/** Times every frame, from the "pre" to the "post" hook of the sketch,
+	  * which covers drawing and the input events handled in that frame
+	  * */
+	public static class FrameTimer {
+
+		private final Histogram frames;
+		private long start;
+
+		FrameTimer(Histogram frames) {
+			this.frames = frames;
+		}
+
+		public void pre() {
+			start = System.nanoTime();
+		}
+
+		public void post() {
+			frames.record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	// Settings
+	private int minutes = 120;
+	private int quakes = 20000;
+	private int cities = 2000;
+	private int days = 7;
+	private int distribution = SyntheticFeeds.PLATE_BOUNDARIES;
+	private long seed = 1;
+	private int refreshSeconds = 60;
+	private int reportSeconds = 60;
+	private int warmupSeconds = 60;
+	private int startupSeconds = 120;
+	private double maxP99Millis = 0;
+	private double maxHeapGrowthMB = 0;
+	private File dir = new File("data/soak");
+
+	// Measurements since the last report, and over the run after warm-up
+	private final Histogram frames = new Histogram();
+	private final Histogram refreshes = new Histogram();
+	private final Histogram pauses = new Histogram();
+	private final Histogram totalFrames = new Histogram();
+	private final Histogram totalRefreshes = new Histogram();
+	private final Histogram totalPauses = new Histogram();
+
+	private SyntheticFeeds generator;
+	private long feedTime = Instant.parse("2015-08-07T20:54:48Z").toEpochMilli();
+	private File atomFeed;
+	private File geoJSONFeed;
+
+	private volatile boolean running = true;
+
+	// First exception left uncaught by any thread, such as a failed setup()
+	private volatile Throwable failure;
+
+	public static void main(String[] args) throws Exception {
+		SoakHarness harness = new SoakHarness();
+		harness.parse(args);
+		System.exit(harness.run());
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("--minutes")) {
+				minutes = Integer.parseInt(value);
+			} else if (args[i].equals("--quakes")) {
+				quakes = Integer.parseInt(value);
+			} else if (args[i].equals("--cities")) {
+				cities = Integer.parseInt(value);
+			} else if (args[i].equals("--days")) {
+				days = Integer.parseInt(value);
+			} else if (args[i].equals("--distribution")) {
+				distribution = value.equals("uniform") ? SyntheticFeeds.UNIFORM : SyntheticFeeds.PLATE_BOUNDARIES;
+			} else if (args[i].equals("--seed")) {
+				seed = Long.parseLong(value);
+			} else if (args[i].equals("--refresh-seconds")) {
+				refreshSeconds = Integer.parseInt(value);
+			} else if (args[i].equals("--report-seconds")) {
+				reportSeconds = Integer.parseInt(value);
+			} else if (args[i].equals("--warmup-seconds")) {
+				warmupSeconds = Integer.parseInt(value);
+			} else if (args[i].equals("--startup-seconds")) {
+				startupSeconds = Integer.parseInt(value);
+			} else if (args[i].equals("--max-p99-ms")) {
+				maxP99Millis = Double.parseDouble(value);
+			} else if (args[i].equals("--max-heap-growth-mb")) {
+				maxHeapGrowthMB = Double.parseDouble(value);
+			} else if (args[i].equals("--dir")) {
+				dir = new File(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+	}
+
+	/** Runs the soak test
+	  * @return the exit status, 1 if a limit was exceeded
+	  * */
+	private int run() throws Exception {
+		if (GraphicsEnvironment.isHeadless()) {
+			System.out.println("FAILED: no display to run the sketch on, run under xvfb-run");
+			return 1;
+		}
+		dir.mkdirs();
+		generator = new SyntheticFeeds(seed);
+		atomFeed = new File(dir, "quakes.atom");
+		geoJSONFeed = new File(dir, "quakes.geojson");
+		File cityFile = new File(dir, "cities.json");
+		Writer writer = SyntheticFeeds.open(cityFile);
+		try {
+			generator.writeCities(cities, writer);
+		} finally {
+			writer.close();
+		}
+		writeFeeds();
+		listenToGC();
+
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread thread, Throwable e) {
+				if (failure == null) {
+					failure = e;
+				}
+				System.err.print("Exception in thread \"" + thread.getName() + "\" ");
+				e.printStackTrace();
+			}
+		});
+		final EarthquakeCityMap sketch;
+		try {
+			sketch = startSketch(cityFile);
+		} catch (Throwable e) {
+			System.out.println("FAILED: the sketch did not start: " + e);
+			return 1;
+		}
+		// Fail rather than wait forever when setup() throws or never returns
+		long startupEnd = System.currentTimeMillis() + startupSeconds * 1000L;
+		while (sketch.frameCount == 0 && failure == null && System.currentTimeMillis() < startupEnd) {
+			Thread.sleep(100);
+		}
+		if (sketch.frameCount == 0) {
+			if (failure != null) {
+				System.out.println("FAILED: the sketch did not start: " + failure);
+			} else {
+				System.out.println("FAILED: the sketch drew no frame within " + startupSeconds + " seconds");
+			}
+			return 1;
+		}
+		System.out.println("Soak test of " + minutes + " minutes on " + quakes + " quakes and " + cities + " cities");
+
+		Thread driver = new Thread(new Runnable() {
+			public void run() {
+				drive(sketch);
+			}
+		}, "soak-driver");
+		driver.setDaemon(true);
+		driver.start();
+
+		long start = System.currentTimeMillis();
+		long end = start + minutes * 60 * 1000L;
+		long warmupEnd = start + warmupSeconds * 1000L;
+		long baseline = -1;
+		long growth = 0;
+		long nextReport = start + reportSeconds * 1000L;
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(Math.max(1, Math.min(nextReport, end) - System.currentTimeMillis()));
+			if (System.currentTimeMillis() < nextReport && System.currentTimeMillis() < end) {
+				continue;
+			}
+			nextReport += reportSeconds * 1000L;
+			long live = liveHeap();
+			boolean warm = System.currentTimeMillis() >= warmupEnd;
+			if (warm && baseline < 0) {
+				baseline = live;
+			}
+			growth = baseline < 0 ? 0 : live - baseline;
+			report(elapsed(start), frames, refreshes, pauses, live, growth);
+			if (warm) {
+				totalFrames.add(frames);
+				totalRefreshes.add(refreshes);
+				totalPauses.add(pauses);
+			}
+			frames.clear();
+			refreshes.clear();
+			pauses.clear();
+		}
+		running = false;
+
+		System.out.println("Total after warm-up:");
+		report(elapsed(start), totalFrames, totalRefreshes, totalPauses, liveHeap(), growth);
+		int status = 0;
+		double p99 = totalFrames.percentile(0.99) / 1000.0;
+		if (maxP99Millis > 0 && p99 > maxP99Millis) {
+			System.out.println(String.format(Locale.ROOT, "FAILED: p99 frame time %.1f ms over %.1f ms", p99, maxP99Millis));
+			status = 1;
+		}
+		if (maxHeapGrowthMB > 0 && growth / 1e6 > maxHeapGrowthMB) {
+			System.out.println(String.format(Locale.ROOT, "FAILED: heap grew %.1f MB, over %.1f MB", growth / 1e6, maxHeapGrowthMB));
+			status = 1;
+		}
+		return status;
+	}
+
+	/** Opens the map on the synthetic feeds and cities, timing its frames
+	  * and feed refreshes
+	  * */
+	private EarthquakeCityMap startSketch(File cityFile) {
+		EarthquakeCityMap sketch = new EarthquakeCityMap() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void refreshEarthquakes() {
+				long start = System.nanoTime();
+				super.refreshEarthquakes();
+				refreshes.record((System.nanoTime() - start) / 1000);
+			}
+		};
+		sketch.offlineTiles = true;
+		sketch.feedOverride = new String[] {atomFeed.getAbsolutePath(), geoJSONFeed.getAbsolutePath()};
+		sketch.cityFileOverride = cityFile.getAbsolutePath();
+		FrameTimer timer = new FrameTimer(frames);
+		sketch.registerMethod("pre", timer);
+		sketch.registerMethod("post", timer);
+		PApplet.runSketch(new String[] {"main.EarthquakeCityMap"}, sketch);
+		return sketch;
+	}
+
+	/** Posts synthetic input to the sketch until the run ends: a random walk
+	  * of the cursor over the map with clicks and wheel zooms, and a feed
+	  * refresh every refreshSeconds
+	  * */
+	private void drive(PApplet sketch) {
+		Random random = new Random(seed);
+		int x = MAP_LEFT + MAP_WIDTH / 2;
+		int y = MAP_TOP + MAP_HEIGHT / 2;
+		long nextRefresh = System.currentTimeMillis() + refreshSeconds * 1000L;
+		try {
+			for (long moves = 1; running; moves++) {
+				Thread.sleep(MOVE_MILLIS);
+				x = Math.max(MAP_LEFT, Math.min(MAP_LEFT + MAP_WIDTH - 1, x + random.nextInt(21) - 10));
+				y = Math.max(MAP_TOP, Math.min(MAP_TOP + MAP_HEIGHT - 1, y + random.nextInt(21) - 10));
+				long now = System.currentTimeMillis();
+				sketch.postEvent(new MouseEvent(null, now, MouseEvent.MOVE, 0, x, y, 0, 0));
+				if (moves % MOVES_PER_CLICK == 0) {
+					sketch.postEvent(new MouseEvent(null, now, MouseEvent.PRESS, 0, x, y, PApplet.LEFT, 1));
+					sketch.postEvent(new MouseEvent(null, now, MouseEvent.RELEASE, 0, x, y, PApplet.LEFT, 1));
+					sketch.postEvent(new MouseEvent(null, now, MouseEvent.CLICK, 0, x, y, PApplet.LEFT, 1));
+				}
+				if (moves % MOVES_PER_WHEEL == 0) {
+					// zoom in a few steps and back out again
+					int step = (moves / MOVES_PER_WHEEL) % 8 < 4 ? -1 : 1;
+					sketch.postEvent(new MouseEvent(null, now, MouseEvent.WHEEL, 0, x, y, 0, step));
+				}
+				if (now >= nextRefresh) {
+					nextRefresh = now + refreshSeconds * 1000L;
+					feedTime += HOUR;
+					writeFeeds();
+					sketch.postEvent(new KeyEvent(null, now, KeyEvent.PRESS, 0, 'r', 'R'));
+					sketch.postEvent(new KeyEvent(null, now, KeyEvent.RELEASE, 0, 'r', 'R'));
+				}
+			}
+		} catch (InterruptedException e) {
+			// the run is over
+		} catch (IOException e) {
+			System.err.println("Could not write the feeds: " + e);
+		}
+	}
+
+	/** Writes the quakes of the days up to feedTime as the Atom feed, and
+	  * those of the last day again as the GeoJSON feed, so the refresh also
+	  * merges overlapping feeds
+	  * */
+	private void writeFeeds() throws IOException {
+		List<SyntheticFeeds.Quake> window = generator.generateQuakes(feedTime - days * DAY, feedTime,
+				(double)quakes / days, distribution);
+		List<SyntheticFeeds.Quake> lastDay = new ArrayList<SyntheticFeeds.Quake>();
+		for (SyntheticFeeds.Quake quake : window) {
+			if (quake.time >= feedTime - DAY) {
+				lastDay.add(quake);
+			}
+		}
+		Writer writer = SyntheticFeeds.open(atomFeed);
+		try {
+			SyntheticFeeds.writeAtom(window, feedTime, writer);
+		} finally {
+			writer.close();
+		}
+		writer = SyntheticFeeds.open(geoJSONFeed);
+		try {
+			SyntheticFeeds.writeGeoJSON(lastDay, feedTime, writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/** Records the pause of every stop-the-world collection */
+	private void listenToGC() {
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info =
+						GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+				// concurrent cycles run alongside the application and are not pauses
+				String name = info.getGcName();
+				if (!name.contains("Concurrent") && !name.endsWith("Cycles")) {
+					pauses.record(info.getGcInfo().getDuration() * 1000);
+				}
+			}
+		};
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter)collector).addNotificationListener(listener, null, null);
+			}
+		}
+	}
+
+	/** Bytes of heap in use right after the last collection of each pool */
+	private static long liveHeap() {
+		long live = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && usage != null) {
+				live += usage.getUsed();
+			}
+		}
+		return live;
+	}
+
+	private static String elapsed(long start) {
+		long seconds = (System.currentTimeMillis() - start) / 1000;
+		return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+	private static void report(String time, Histogram frames, Histogram refreshes, Histogram pauses,
+			long live, long growth) {
+		System.out.println(String.format(Locale.ROOT,
+				"[%s] frames %d p50 %.1f p90 %.1f p99 %.1f max %.1f ms | refreshes %d p50 %.0f max %.0f ms"
+				+ " | live heap %.1f MB (%+.1f MB) | GC pauses %d, %.0f ms total, max %.0f ms",
+				time, frames.count(), frames.percentile(0.5) / 1000.0, frames.percentile(0.9) / 1000.0,
+				frames.percentile(0.99) / 1000.0, frames.max() / 1000.0,
+				refreshes.count(), refreshes.percentile(0.5) / 1000.0, refreshes.max() / 1000.0,
+				live / 1e6, growth / 1e6, pauses.count(), pauses.sum() / 1000.0, pauses.max() / 1000.0));
+	}
+}
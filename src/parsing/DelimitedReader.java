@@ -0,0 +1,253 @@
+package parsing;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ * Streaming tokenizer for CSV and TSV files.
+ *
+ * Rows are read one at a time from a fixed character buffer, and the fields
+ * of the current row are kept as ranges of a reusable row buffer, so a
+ * large file is never held in memory and fields that are not used are
+ * never turned into Strings. Numeric fields can be parsed in place.
+ *
+ * With quoting on, a field that starts with a double quote runs to the
+ * closing quote, may contain delimiters and line breaks, and writes a
+ * quote as two quotes, as in RFC 4180.
+ */
+public class DelimitedReader implements Closeable {
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
+
+	private final Reader reader;
+	private final char delimiter;
+	private final boolean quoting;
+
+	private final char[] buffer = new char[1 << 16];
+	private int pos = 0;
+	private int limit = 0;
+
+	// Characters of the current row and the range of each field in it
+	private char[] row = new char[256];
+	private int rowLength;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int size;
+
+	public DelimitedReader(Reader reader, char delimiter) {
+		this(reader, delimiter, true);
+	}
+
+	public DelimitedReader(Reader reader, char delimiter, boolean quoting) {
+		this.reader = reader;
+		this.delimiter = delimiter;
+		this.quoting = quoting;
+	}
+
+	/*
+	 * Reads the next row.
+	 *
+	 * @return false at the end of the input
+	 */
+	public boolean nextRow() throws IOException {
+		size = 0;
+		rowLength = 0;
+		int c = read();
+		if (c < 0) {
+			return false;
+		}
+		boolean quoted = false;
+		startField();
+		while (c >= 0) {
+			if (quoted) {
+				if (c == '"') {
+					if (peek() == '"') {
+						pos++;
+						append('"');
+					} else {
+						quoted = false;
+					}
+				} else {
+					append(c);
+				}
+			} else if (c == delimiter) {
+				endField();
+				startField();
+			} else if (c == '\n') {
+				break;
+			} else if (c == '\r') {
+				if (peek() == '\n') {
+					pos++;
+				}
+				break;
+			} else if (c == '"' && quoting && rowLength == starts[size]) {
+				quoted = true;
+			} else {
+				append(c);
+			}
+			c = read();
+		}
+		endField();
+		return true;
+	}
+
+	/* Number of fields in the current row */
+	public int size() {
+		return size;
+	}
+
+	public String get(int i) {
+		return new String(row, starts[i], ends[i] - starts[i]);
+	}
+
+	public boolean isEmpty(int i) {
+		return ends[i] == starts[i];
+	}
+
+	/* Compares a field to a string without creating a String for the field */
+	public boolean equals(int i, String value) {
+		int length = ends[i] - starts[i];
+		if (length != value.length()) {
+			return false;
+		}
+		for (int k = 0; k < length; k++) {
+			if (row[starts[i] + k] != value.charAt(k)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public float getFloat(int i) {
+		return (float)getDouble(i);
+	}
+
+	/*
+	 * Parses a numeric field. Plain decimals such as "-12.345" are parsed in
+	 * place; other forms go through Double.parseDouble.
+	 *
+	 * @throws NumberFormatException if the field is not a number
+	 */
+	public double getDouble(int i) {
+		int k = starts[i];
+		int end = ends[i];
+		boolean negative = false;
+		if (k < end && (row[k] == '-' || row[k] == '+')) {
+			negative = row[k] == '-';
+			k++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean point = false;
+		int first = k;
+		for (; k < end; k++) {
+			char c = row[k];
+			if (c >= '0' && c <= '9') {
+				if (++digits > 18) {
+					break;
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (point) {
+					scale++;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (k < end || digits == 0 || k == first) {
+			return Double.parseDouble(get(i).trim());
+		}
+		double value = mantissa / POW10[scale];
+		return negative ? -value : value;
+	}
+
+	/*
+	 * Parses an integer field.
+	 *
+	 * @throws NumberFormatException if the field is not an integer
+	 */
+	public long getLong(int i) {
+		int k = starts[i];
+		int end = ends[i];
+		boolean negative = false;
+		if (k < end && (row[k] == '-' || row[k] == '+')) {
+			negative = row[k] == '-';
+			k++;
+		}
+		if (k == end || end - k > 18) {
+			return Long.parseLong(get(i).trim());
+		}
+		long value = 0;
+		for (; k < end; k++) {
+			char c = row[k];
+			if (c < '0' || c > '9') {
+				return Long.parseLong(get(i).trim());
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private void startField() {
+		if (size == starts.length) {
+			int[] grownStarts = new int[size * 2];
+			int[] grownEnds = new int[size * 2];
+			System.arraycopy(starts, 0, grownStarts, 0, size);
+			System.arraycopy(ends, 0, grownEnds, 0, size);
+			starts = grownStarts;
+			ends = grownEnds;
+		}
+		starts[size] = rowLength;
+	}
+
+	private void endField() {
+		ends[size++] = rowLength;
+	}
+
+	private void append(int c) {
+		if (rowLength == row.length) {
+			char[] grown = new char[row.length * 2];
+			System.arraycopy(row, 0, grown, 0, rowLength);
+			row = grown;
+		}
+		row[rowLength++] = (char)c;
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos];
+	}
+
+	private int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++];
+	}
+
+	private boolean fill() throws IOException {
+		int n = reader.read(buffer, 0, buffer.length);
+		if (n <= 0) {
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+}
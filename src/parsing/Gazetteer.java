@@ -0,0 +1,236 @@
+package parsing;
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Populated places read from a large tab or comma separated dump, such as
+ * the GeoNames allCountries.txt or cities500.txt files.
+ *
+ * The dump is streamed row by row through DelimitedReader into primitive
+ * arrays, and names and countries are interned to ids, so hundreds of
+ * thousands of places take a few bytes each and no per-place objects.
+ * Places are kept ordered by population, largest first, so the places
+ * above any population threshold are a prefix of the arrays.
+ */
+public class Gazetteer {
+
+	// Columns of the GeoNames dumps
+	private static final int GEONAMES_NAME = 1;
+	private static final int GEONAMES_LAT = 4;
+	private static final int GEONAMES_LON = 5;
+	private static final int GEONAMES_FEATURE_CLASS = 6;
+	private static final int GEONAMES_COUNTRY = 8;
+	private static final int GEONAMES_POPULATION = 14;
+
+	private int size = 0;
+	private float[] lat = new float[1024];
+	private float[] lon = new float[1024];
+	// in millions, as in city-data.json
+	private float[] population = new float[1024];
+	private int[] nameId = new int[1024];
+	private int[] countryId = new int[1024];
+
+	// Interned names and countries, by id and by value
+	private final List<String> names = new ArrayList<String>();
+	private final HashMap<String, Integer> nameIds = new HashMap<String, Integer>();
+	private final List<String> countries = new ArrayList<String>();
+	private final HashMap<String, Integer> countryIds = new HashMap<String, Integer>();
+
+	private Gazetteer() {
+	}
+
+	/*
+	 * Reads the populated places (feature class P) of a GeoNames dump.
+	 * Rows whose coordinates or population are not numbers are skipped.
+	 *
+	 * @param reader - the tab separated dump, closed when done
+	 * @param minPopulation - smallest population to keep, in millions
+	 */
+	public static Gazetteer loadGeoNames(Reader reader, float minPopulation) throws IOException {
+		Gazetteer gazetteer = new Gazetteer();
+		DelimitedReader rows = new DelimitedReader(reader, '\t', false);
+		try {
+			while (rows.nextRow()) {
+				if (rows.size() <= GEONAMES_POPULATION || !rows.equals(GEONAMES_FEATURE_CLASS, "P")) {
+					continue;
+				}
+				try {
+					gazetteer.add(rows, GEONAMES_NAME, GEONAMES_LAT, GEONAMES_LON, GEONAMES_COUNTRY,
+							GEONAMES_POPULATION, minPopulation);
+				} catch (NumberFormatException e) {
+					// a malformed row
+				}
+			}
+		} finally {
+			rows.close();
+		}
+		gazetteer.sortByPopulation();
+		return gazetteer;
+	}
+
+	/*
+	 * Reads places from a delimited file with the given columns, e.g. a CSV
+	 * export. Rows whose coordinates or population are not numbers, such as
+	 * a header, are skipped.
+	 *
+	 * @param reader - the file, closed when done
+	 * @param delimiter - ',' or '\t'
+	 * @param population - column of the population in persons
+	 * @param minPopulation - smallest population to keep, in millions
+	 */
+	public static Gazetteer loadDelimited(Reader reader, char delimiter, int name, int latitude, int longitude,
+			int country, int population, float minPopulation) throws IOException {
+		Gazetteer gazetteer = new Gazetteer();
+		int columns = Math.max(Math.max(name, country), Math.max(population, Math.max(latitude, longitude))) + 1;
+		DelimitedReader rows = new DelimitedReader(reader, delimiter);
+		try {
+			while (rows.nextRow()) {
+				if (rows.size() < columns) {
+					continue;
+				}
+				try {
+					gazetteer.add(rows, name, latitude, longitude, country, population, minPopulation);
+				} catch (NumberFormatException e) {
+					// not a place, e.g. the header
+				}
+			}
+		} finally {
+			rows.close();
+		}
+		gazetteer.sortByPopulation();
+		return gazetteer;
+	}
+
+	/* Number of places */
+	public int size() {
+		return size;
+	}
+
+	public float getLat(int i) {
+		return lat[i];
+	}
+
+	public float getLon(int i) {
+		return lon[i];
+	}
+
+	/* Population in millions */
+	public float getPopulation(int i) {
+		return population[i];
+	}
+
+	public int getNameId(int i) {
+		return nameId[i];
+	}
+
+	public String getName(int i) {
+		return names.get(nameId[i]);
+	}
+
+	public int getCountryId(int i) {
+		return countryId[i];
+	}
+
+	public String getCountry(int i) {
+		return countries.get(countryId[i]);
+	}
+
+	/* Number of distinct names and countries */
+	public int getNameCount() {
+		return names.size();
+	}
+
+	public int getCountryCount() {
+		return countries.size();
+	}
+
+	/*
+	 * Number of places with at least the given population in millions; as
+	 * places are ordered by population, these are places 0 to count - 1.
+	 */
+	public int countAtLeast(float minPopulation) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (population[middle] >= minPopulation) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/* Appends the place of the current row if it is populated enough */
+	private void add(DelimitedReader rows, int name, int latitude, int longitude, int country, int people,
+			float minPopulation) {
+		float millions = rows.isEmpty(people) ? 0 : (float)Math.max(0, rows.getDouble(people) / 1e6);
+		if (millions < minPopulation) {
+			return;
+		}
+		float placeLat = rows.getFloat(latitude);
+		float placeLon = rows.getFloat(longitude);
+		if (size == lat.length) {
+			int capacity = size * 2;
+			lat = Arrays.copyOf(lat, capacity);
+			lon = Arrays.copyOf(lon, capacity);
+			population = Arrays.copyOf(population, capacity);
+			nameId = Arrays.copyOf(nameId, capacity);
+			countryId = Arrays.copyOf(countryId, capacity);
+		}
+		lat[size] = placeLat;
+		lon[size] = placeLon;
+		population[size] = millions;
+		nameId[size] = intern(rows.get(name), names, nameIds);
+		countryId[size] = intern(rows.get(country), countries, countryIds);
+		size++;
+	}
+
+	private static int intern(String value, List<String> values, HashMap<String, Integer> ids) {
+		Integer id = ids.get(value);
+		if (id == null) {
+			id = values.size();
+			values.add(value);
+			ids.put(value, id);
+		}
+		return id;
+	}
+
+	/*
+	 * Orders the places by population, largest first and in file order
+	 * among equals, sorting packed (population, position) keys.
+	 */
+	private void sortByPopulation() {
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			// the bits of a non-negative float order like the float
+			keys[i] = ((long)Float.floatToIntBits(population[i]) << 32) | (Integer.MAX_VALUE - i);
+		}
+		Arrays.sort(keys);
+		float[] sortedLat = new float[size];
+		float[] sortedLon = new float[size];
+		float[] sortedPopulation = new float[size];
+		int[] sortedNameId = new int[size];
+		int[] sortedCountryId = new int[size];
+		for (int k = 0; k < size; k++) {
+			int i = Integer.MAX_VALUE - (int)keys[size - 1 - k];
+			sortedLat[k] = lat[i];
+			sortedLon[k] = lon[i];
+			sortedPopulation[k] = population[i];
+			sortedNameId[k] = nameId[i];
+			sortedCountryId[k] = countryId[i];
+		}
+		lat = sortedLat;
+		lon = sortedLon;
+		population = sortedPopulation;
+		nameId = sortedNameId;
+		countryId = sortedCountryId;
+	}
+}
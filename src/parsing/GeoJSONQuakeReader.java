@@ -0,0 +1,518 @@
+package parsing;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.geo.Location;
+
+/*
+ * Streaming reader for the USGS GeoJSON summary feeds, e.g.
+ * https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/2.5_week.geojson
+ *
+ * The "features" array is tokenized incrementally from a fixed byte buffer
+ * and each call to next() returns one quake, so memory use does not depend
+ * on the size of the feed. Numbers are parsed straight from the bytes and
+ * only the string values that end up in the feature are decoded.
+ *
+ * The features carry the same properties ParseFeed.parseEarthquake sets for
+ * Atom feeds: "title", "magnitude", "depth" (km), "age" and "time", and the
+ * id "urn:earthquake-usgs-gov:<net>:<code>" used by the Atom feeds.
+ */
+public class GeoJSONQuakeReader implements Closeable {
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private static final byte[] KEY_FEATURES = bytes("features");
+	private static final byte[] KEY_METADATA = bytes("metadata");
+	private static final byte[] KEY_GENERATED = bytes("generated");
+	private static final byte[] KEY_PROPERTIES = bytes("properties");
+	private static final byte[] KEY_GEOMETRY = bytes("geometry");
+	private static final byte[] KEY_COORDINATES = bytes("coordinates");
+	private static final byte[] KEY_ID = bytes("id");
+	private static final byte[] KEY_MAG = bytes("mag");
+	private static final byte[] KEY_TIME = bytes("time");
+	private static final byte[] KEY_TITLE = bytes("title");
+	private static final byte[] KEY_NET = bytes("net");
+	private static final byte[] KEY_CODE = bytes("code");
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[1 << 16];
+	private int pos = 0;
+	private int limit = 0;
+
+	// Scratch space for the string being read
+	private byte[] scratch = new byte[256];
+	private int scratchLength;
+
+	// Feed generation time, the reference for the "age" property
+	private long generated;
+	private boolean inFeatures = false;
+	private boolean done = false;
+
+	// Fields of the feature being read
+	private double mag;
+	private boolean hasMag;
+	private long time;
+	private boolean hasTime;
+	private String title;
+	private String net;
+	private String code;
+	private String rawId;
+	private final double[] coordinates = new double[3];
+	private int numCoordinates;
+
+	public GeoJSONQuakeReader(InputStream in) {
+		this.in = in;
+		this.generated = System.currentTimeMillis();
+	}
+
+	/*
+	 * Reads the next quake of the feed.
+	 *
+	 * @return the quake, or null at the end of the features array
+	 */
+	public PointFeature next() throws IOException {
+		if (done) {
+			return null;
+		}
+		if (!inFeatures) {
+			seekFeatures();
+			if (done) {
+				return null;
+			}
+		}
+		while (true) {
+			int c = skipWhitespace();
+			if (c == ',') {
+				pos++;
+				c = skipWhitespace();
+			}
+			if (c == ']' || c < 0) {
+				done = true;
+				return null;
+			}
+			readFeature();
+			if (hasMag && numCoordinates >= 2) {
+				return createFeature();
+			}
+			// features without a magnitude or position cannot be drawn
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/* Reads the top-level object up to the opening bracket of "features" */
+	private void seekFeatures() throws IOException {
+		expect('{');
+		while (true) {
+			int c = skipWhitespace();
+			if (c == ',') {
+				pos++;
+				c = skipWhitespace();
+			}
+			if (c != '"') {
+				done = true;
+				return;
+			}
+			readString();
+			expect(':');
+			if (scratchEquals(KEY_FEATURES)) {
+				expect('[');
+				inFeatures = true;
+				return;
+			} else if (scratchEquals(KEY_METADATA)) {
+				readMetadata();
+			} else {
+				skipValue();
+			}
+		}
+	}
+
+	private void readMetadata() throws IOException {
+		expect('{');
+		while (nextKey()) {
+			if (scratchEquals(KEY_GENERATED) && peekNumber()) {
+				generated = (long)readNumber();
+			} else {
+				skipValue();
+			}
+		}
+	}
+
+	private void readFeature() throws IOException {
+		hasMag = false;
+		hasTime = false;
+		title = null;
+		net = null;
+		code = null;
+		rawId = null;
+		numCoordinates = 0;
+
+		expect('{');
+		while (nextKey()) {
+			if (scratchEquals(KEY_PROPERTIES)) {
+				readProperties();
+			} else if (scratchEquals(KEY_GEOMETRY)) {
+				readGeometry();
+			} else if (scratchEquals(KEY_ID) && peek() == '"') {
+				readString();
+				rawId = scratchString();
+			} else {
+				skipValue();
+			}
+		}
+	}
+
+	private void readProperties() throws IOException {
+		if (peek() != '{') {
+			skipValue();
+			return;
+		}
+		expect('{');
+		while (nextKey()) {
+			if (scratchEquals(KEY_MAG) && peekNumber()) {
+				mag = readNumber();
+				hasMag = true;
+			} else if (scratchEquals(KEY_TIME) && peekNumber()) {
+				time = (long)readNumber();
+				hasTime = true;
+			} else if (scratchEquals(KEY_TITLE) && peek() == '"') {
+				readString();
+				title = scratchString();
+			} else if (scratchEquals(KEY_NET) && peek() == '"') {
+				readString();
+				net = scratchString();
+			} else if (scratchEquals(KEY_CODE) && peek() == '"') {
+				readString();
+				code = scratchString();
+			} else {
+				skipValue();
+			}
+		}
+	}
+
+	private void readGeometry() throws IOException {
+		if (peek() != '{') {
+			skipValue();
+			return;
+		}
+		expect('{');
+		while (nextKey()) {
+			if (scratchEquals(KEY_COORDINATES) && peek() == '[') {
+				expect('[');
+				while (true) {
+					int c = skipWhitespace();
+					if (c == ',') {
+						pos++;
+						c = skipWhitespace();
+					}
+					if (c == ']') {
+						pos++;
+						break;
+					}
+					if (numCoordinates < coordinates.length && peekNumber()) {
+						coordinates[numCoordinates++] = readNumber();
+					} else {
+						skipValue();
+					}
+				}
+			} else {
+				skipValue();
+			}
+		}
+	}
+
+	private PointFeature createFeature() {
+		// GeoJSON positions are lon, lat, depth
+		PointFeature point = new PointFeature(new Location(coordinates[1], coordinates[0]));
+		if (net != null && code != null) {
+			point.setId("urn:earthquake-usgs-gov:" + net + ":" + code);
+		} else if (rawId != null) {
+			point.setId(rawId);
+		}
+		if (title != null) {
+			point.putProperty("title", title);
+		}
+		point.putProperty("magnitude", (float)mag);
+		// one decimal place, as for the Atom feeds
+		float depth = numCoordinates > 2 ? (int)(coordinates[2] * 10) / 10f : 0f;
+		point.putProperty("depth", Math.abs(depth));
+		if (hasTime) {
+			point.putProperty("time", time);
+			point.putProperty("age", ParseFeed.getAge(generated - time));
+		}
+		return point;
+	}
+
+	/*
+	 * Moves to the next key of the current object and reads it into the
+	 * scratch buffer, consuming the colon. Returns false at the closing brace.
+	 */
+	private boolean nextKey() throws IOException {
+		int c = skipWhitespace();
+		if (c == ',') {
+			pos++;
+			c = skipWhitespace();
+		}
+		if (c == '}') {
+			pos++;
+			return false;
+		}
+		if (c != '"') {
+			throw new IOException("Expected a key but found " + describe(c));
+		}
+		readString();
+		expect(':');
+		skipWhitespace();
+		return true;
+	}
+
+	/* Skips any value, including nested objects and arrays */
+	private void skipValue() throws IOException {
+		int c = skipWhitespace();
+		if (c == '"') {
+			skipString();
+			return;
+		}
+		if (c != '{' && c != '[') {
+			// number or literal
+			while ((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+				pos++;
+			}
+			return;
+		}
+		int depth = 0;
+		while ((c = peek()) >= 0) {
+			if (c == '"') {
+				skipString();
+				continue;
+			}
+			pos++;
+			if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (--depth == 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void skipString() throws IOException {
+		pos++;
+		int c;
+		while ((c = read()) >= 0) {
+			if (c == '\\') {
+				read();
+			} else if (c == '"') {
+				return;
+			}
+		}
+	}
+
+	/* Reads a string value into the scratch buffer as UTF-8, resolving escapes */
+	private void readString() throws IOException {
+		pos++;
+		scratchLength = 0;
+		int c;
+		while ((c = read()) >= 0 && c != '"') {
+			if (c == '\\') {
+				c = read();
+				switch (c) {
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'u':
+					appendCodePoint(readHex4());
+					continue;
+				default: break;
+				}
+			}
+			appendByte(c);
+		}
+	}
+
+	private int readHex4() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 4) | Character.digit(read(), 16);
+		}
+		return value;
+	}
+
+	private void appendCodePoint(int cp) {
+		if (cp < 0x80) {
+			appendByte(cp);
+		} else if (cp < 0x800) {
+			appendByte(0xC0 | (cp >> 6));
+			appendByte(0x80 | (cp & 0x3F));
+		} else {
+			// lone surrogates from \\u escapes are kept as 3-byte sequences
+			appendByte(0xE0 | (cp >> 12));
+			appendByte(0x80 | ((cp >> 6) & 0x3F));
+			appendByte(0x80 | (cp & 0x3F));
+		}
+	}
+
+	private void appendByte(int b) {
+		if (scratchLength == scratch.length) {
+			byte[] grown = new byte[scratch.length * 2];
+			System.arraycopy(scratch, 0, grown, 0, scratchLength);
+			scratch = grown;
+		}
+		scratch[scratchLength++] = (byte)b;
+	}
+
+	private boolean scratchEquals(byte[] key) {
+		if (key.length != scratchLength) {
+			return false;
+		}
+		for (int i = 0; i < scratchLength; i++) {
+			if (scratch[i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String scratchString() {
+		return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+	}
+
+	private boolean peekNumber() throws IOException {
+		int c = skipWhitespace();
+		return c == '-' || (c >= '0' && c <= '9');
+	}
+
+	/*
+	 * Parses a JSON number from the buffer. Up to 18 significant digits are
+	 * accumulated in a long and scaled by an exact power of ten, which is
+	 * correctly rounded for the mantissas and exponents found in the feeds.
+	 */
+	private double readNumber() throws IOException {
+		boolean negative = false;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		int c = peek();
+		if (c == '-') {
+			negative = true;
+			pos++;
+		}
+		while ((c = peek()) >= '0' && c <= '9') {
+			pos++;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0) {
+					digits++;
+				}
+			} else {
+				exponent++;
+			}
+		}
+		if (c == '.') {
+			pos++;
+			while ((c = peek()) >= '0' && c <= '9') {
+				pos++;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					exponent--;
+				}
+			}
+		}
+		if (c == 'e' || c == 'E') {
+			pos++;
+			boolean negativeExp = false;
+			c = peek();
+			if (c == '+' || c == '-') {
+				negativeExp = c == '-';
+				pos++;
+			}
+			int exp = 0;
+			while ((c = peek()) >= '0' && c <= '9') {
+				pos++;
+				exp = Math.min(exp * 10 + (c - '0'), 10000);
+			}
+			exponent += negativeExp ? -exp : exp;
+		}
+		double value;
+		if (exponent == 0) {
+			value = mantissa;
+		} else if (exponent > 0 && exponent < POW10.length) {
+			value = mantissa * POW10[exponent];
+		} else if (exponent < 0 && -exponent < POW10.length) {
+			value = mantissa / POW10[-exponent];
+		} else {
+			value = mantissa * Math.pow(10, exponent);
+		}
+		return negative ? -value : value;
+	}
+
+	private void expect(char expected) throws IOException {
+		int c = skipWhitespace();
+		if (c != expected) {
+			throw new IOException("Expected '" + expected + "' but found " + describe(c));
+		}
+		pos++;
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c;
+		while ((c = peek()) >= 0 && isWhitespace(c)) {
+			pos++;
+		}
+		return c;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos] & 0xFF;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++] & 0xFF;
+	}
+
+	private boolean fill() throws IOException {
+		int n = in.read(buffer, 0, buffer.length);
+		if (n <= 0) {
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	private static String describe(int c) {
+		return c < 0 ? "end of input" : "'" + (char)c + "'";
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,150 @@
+package parsing;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.fhpotsdam.unfolding.data.PointFeature;
+import processing.core.PApplet;
+
+public class MultiFeedLoader {
+
+	/*
+	 * Orders features newest first; features without a time go last.
+	 */
+	public static final Comparator<PointFeature> NEWEST_FIRST = new Comparator<PointFeature>() {
+		public int compare(PointFeature a, PointFeature b) {
+			long timeA = getTime(a);
+			long timeB = getTime(b);
+			return timeA > timeB ? -1 : (timeA < timeB ? 1 : 0);
+		}
+	};
+
+
+	/*
+	 * This method fetches and parses several earthquake feeds at the same
+	 * time, one thread per feed, so the total load time is that of the
+	 * slowest feed. The feeds are then merged newest first with a k-way merge
+	 * and deduplicated by event id; for an event present in several feeds the
+	 * entry of the feed listed first wins. A feed that fails to load is
+	 * reported and skipped.
+	 *
+	 * @param p - PApplet being used
+	 * @param sources - file names or URLs (including file: URLs) of the feeds
+	 * @return the merged features, newest first
+	 */
+	public static List<PointFeature> parseEarthquakes(final PApplet p, String... sources) {
+		if (sources.length == 1) {
+			List<PointFeature> features = ParseFeed.parseEarthquake(p, sources[0]);
+			Collections.sort(features, NEWEST_FIRST);
+			return dedupe(features);
+		}
+
+		// One platform thread per feed: the tree builds on JDK 17, which has no
+		// virtual threads (final only from JDK 21), and for a few blocking
+		// feed reads plain threads cost nothing worth saving anyway
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, sources.length), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "feed-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		List<Future<List<PointFeature>>> futures = new ArrayList<Future<List<PointFeature>>>();
+		for (final String source : sources) {
+			futures.add(pool.submit(new Callable<List<PointFeature>>() {
+				public List<PointFeature> call() {
+					List<PointFeature> features = ParseFeed.parseEarthquake(p, source);
+					// feeds come newest first already, so this is usually a single pass
+					Collections.sort(features, NEWEST_FIRST);
+					return features;
+				}
+			}));
+		}
+
+		List<List<PointFeature>> feeds = new ArrayList<List<PointFeature>>();
+		for (int i = 0; i < sources.length; i++) {
+			try {
+				feeds.add(futures.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				System.err.println("Could not load feed " + sources[i] + ": " + e.getCause());
+			}
+		}
+		pool.shutdownNow();
+
+		return merge(feeds);
+	}
+
+
+	/*
+	 * K-way merge of feeds that are each sorted newest first, dropping
+	 * repeated event ids. Ties in time keep the order of the feeds.
+	 */
+	public static List<PointFeature> merge(final List<List<PointFeature>> feeds) {
+		int total = 0;
+		for (List<PointFeature> feed : feeds) {
+			total += feed.size();
+		}
+
+		// heap entries are {feed, position}
+		PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, feeds.size()), new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				int order = NEWEST_FIRST.compare(feeds.get(a[0]).get(a[1]), feeds.get(b[0]).get(b[1]));
+				return order != 0 ? order : a[0] - b[0];
+			}
+		});
+		for (int f = 0; f < feeds.size(); f++) {
+			if (!feeds.get(f).isEmpty()) {
+				heads.add(new int[] {f, 0});
+			}
+		}
+
+		List<PointFeature> merged = new ArrayList<PointFeature>(total);
+		Set<String> seen = new HashSet<String>(total * 2);
+		while (!heads.isEmpty()) {
+			int[] head = heads.poll();
+			List<PointFeature> feed = feeds.get(head[0]);
+			PointFeature feature = feed.get(head[1]);
+			if (feature.getId() == null || seen.add(feature.getId())) {
+				merged.add(feature);
+			}
+			if (++head[1] < feed.size()) {
+				heads.add(head);
+			}
+		}
+		return merged;
+	}
+
+
+	private static List<PointFeature> dedupe(List<PointFeature> features) {
+		List<PointFeature> unique = new ArrayList<PointFeature>(features.size());
+		Set<String> seen = new HashSet<String>(features.size() * 2);
+		for (PointFeature feature : features) {
+			if (feature.getId() == null || seen.add(feature.getId())) {
+				unique.add(feature);
+			}
+		}
+		return unique;
+	}
+
+
+	private static long getTime(PointFeature feature) {
+		Object time = feature.getProperty("time");
+		return time == null ? Long.MIN_VALUE : ((Number)time).longValue();
+	}
+
+}
@@ -1,282 +1,495 @@
-package parsing;
-
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-
-import de.fhpotsdam.unfolding.data.Feature;
-import de.fhpotsdam.unfolding.data.PointFeature;
-import de.fhpotsdam.unfolding.data.ShapeFeature;
-import de.fhpotsdam.unfolding.geo.Location;
-import processing.core.PApplet;
-import processing.data.XML;
-
-public class ParseFeed {
-
-
-	/*
-	 * This method is to parse a GeoRSS feed corresponding to earthquakes around
-	 * the globe.
-	 * 
-	 * @param p - PApplet being used
-	 * @param fileName - file name or URL for data source
-	 */
-	public static List<PointFeature> parseEarthquake(PApplet p, String fileName) {
-		List<PointFeature> features = new ArrayList<PointFeature>();
-
-		XML rss = p.loadXML(fileName);
-		// Get all items
-		XML[] itemXML = rss.getChildren("entry");
-		PointFeature point;
-		
-		for (int i = 0; i < itemXML.length; i++) {
-			
-				// get location and create feature
-				Location location = getLocationFromPoint(itemXML[i]);
-				
-				// if successful create PointFeature and add to list
-				if( location != null) {
-					point = new PointFeature(location);
-					features.add(point);
-				}
-				else {
-					continue;
-				}
-
-				// Sets title if existing
-				String titleStr = getStringVal(itemXML[i], "title");
-				if (titleStr != null) {
-					point.putProperty("title", titleStr);
-					// get magnitude from title
-					point.putProperty("magnitude", Float.parseFloat(titleStr.substring(2, 5)));
-				}
-
-				// Sets depth(elevation) if existing
-				float depthVal = getFloatVal(itemXML[i], "georss:elev");
-				
-				// NOT SURE ABOUT CHECKING ERR CONDITION BECAUSE 0 COULD BE VALID?
-				// get one decimal place when converting to km
-				int interVal = (int)(depthVal/100);
-				depthVal = (float) interVal/10;
-				point.putProperty("depth", Math.abs((depthVal)));
-				
-
-				// Sets age if existing
-				XML[] catXML = itemXML[i].getChildren("category");
-				for (int c = 0; c < catXML.length; c++) {
-					String label = catXML[c].getString("label");
-					if ("Age".equals(label)) {
-						String ageStr = catXML[c].getString("term");
-						point.putProperty("age", ageStr);
-					}
-				}
-		
-
-			}
-		
-			return features;
-		}
-
-	
-	/*
-	 * Gets location from georss:point tag
-	 * 
-	 * @param XML Node which has point as child
-	 * 
-	 * @return Location object corresponding to point
-	 */
-	private static Location getLocationFromPoint(XML itemXML) {
-		// set loc to null in case of failure
-		Location loc = null;
-		XML pointXML = itemXML.getChild("georss:point");
-		
-		// set location if existing
-		if (pointXML != null && pointXML.getContent() != null) {
-			String pointStr = pointXML.getContent();
-			String[] latLon = pointStr.split(" ");
-			float lat = Float.valueOf(latLon[0]);
-			float lon = Float.valueOf(latLon[1]);
-
-			loc = new Location(lat, lon);
-		}
-		
-		return loc;
-	}	
-	
-	/*
-	 * Get String content from child node.
-	 */
-	private static String getStringVal(XML itemXML, String tagName) {
-		// Sets title if existing
-		String str = null;
-		XML strXML = itemXML.getChild(tagName);
-		
-		// check if node exists and has content
-		if (strXML != null && strXML.getContent() != null) {
-			str = strXML.getContent();
-		}
-		
-		return str;
-	}
-	
-	/*
-	 * Get float value from child node
-	 */
-	private static float getFloatVal(XML itemXML, String tagName) {
-		return Float.parseFloat(getStringVal(itemXML, tagName));
-	}
-	
-
-	/*
-	 * This method is to parse a file containing airport information.  
-	 * The file and its format can be found: 
-	 * http://openflights.org/data.html#airport
-	 * 
-	 * It is also included with the UC San Diego MOOC package in the file airports.dat
-	 * 
-	 * @param p - PApplet being used
-	 * @param fileName - file name or URL for data source
-	 */
-	public static List<PointFeature> parseAirports(PApplet p, String fileName) {
-		List<PointFeature> features = new ArrayList<PointFeature>();
-
-		String[] rows = p.loadStrings(fileName);
-		for (String row : rows) {
-			
-			// hot-fix for altitude when lat lon out of place
-			int i = 0;
-			
-			// split row by commas not in quotations
-			String[] columns = row.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
-			
-			// get location and create feature
-			//System.out.println(columns[6]);
-			float lat = Float.parseFloat(columns[6]);
-			float lon = Float.parseFloat(columns[7]);
-			
-			Location loc = new Location(lat, lon);
-			PointFeature point = new PointFeature(loc);
-			
-			// set ID to OpenFlights unique identifier
-			point.setId(columns[0]);
-			
-			// get other fields from csv
-			point.addProperty("name", columns[1]);
-			point.putProperty("city", columns[2]);
-			point.putProperty("country", columns[3]);
-			
-			// pretty sure IATA/FAA is used in routes.dat
-			// get airport IATA/FAA code
-			if(!columns[4].equals("")) {
-				point.putProperty("code", columns[4]);
-			}
-			// get airport ICAO code if no IATA
-			else if(!columns[5].equals("")) {
-				point.putProperty("code", columns[5]);
-			}
-			
-			point.putProperty("altitude", columns[8 + i]);
-			
-			features.add(point);
-		}
-
-		return features;
-		
-	}
-	
-	
-
-	/*
-	 * This method is to parse a file containing airport route information.  
-	 * The file and its format can be found: 
-	 * http://openflights.org/data.html#route
-	 * 
-	 * It is also included with the UC San Diego MOOC package in the file routes.dat
-	 * 
-	 * @param p - PApplet being used
-	 * @param fileName - file name or URL for data source
-	 */
-	public static List<ShapeFeature> parseRoutes(PApplet p, String fileName) {
-		List<ShapeFeature> routes = new ArrayList<ShapeFeature>();
-		
-		String[] rows = p.loadStrings(fileName);
-		
-		for(String row : rows) {
-			String[] columns = row.split(",");
-			
-			ShapeFeature route = new ShapeFeature(Feature.FeatureType.LINES);
-			
-			// set id to be OpenFlights identifier for source airport
-			
-			// check that both airports on route have OpenFlights Identifier
-			if(!columns[3].equals("\\N") && !columns[5].equals("\\N")){
-				// set "source" property to be OpenFlights identifier for source airport
-				route.putProperty("source", columns[3]);
-				// "destination property" -- OpenFlights identifier
-				route.putProperty("destination", columns[5]);
-				
-				routes.add(route);
-			}
-		}
-			
-		
-		return routes;
-		
-		
-		
-	}
-	
-	
-
-	/*
-	 * This method is to parse a file containing life expectancy information from
-	 * the world bank.  
-	 * The file and its format can be found: 
-	 * http://data.worldbank.org/indicator/SP.DYN.LE00.IN
-	 * 
-	 * It is also included with the UC San Diego MOOC package 
-	 * in the file LifeExpectancyWorldBank.csv
-	 * 
-	 * @param p - PApplet being used
-	 * @param fileName - file name or URL for data source
-	 * @return A HashMap of country->average age of death
-	 */
-	public static HashMap<String, Float> loadLifeExpectancyFromCSV(PApplet p, String fileName) {
-		// HashMap key: country ID and  data: lifeExp at birth
-		HashMap<String, Float> lifeExpMap = new HashMap<String, Float>();
-
-		// get lines of csv file
-		String[] rows = p.loadStrings(fileName);
-		
-		// Reads country name and population density value from CSV row
-		for (String row : rows) {
-			// split row by commas not in quotations
-			String[] columns = row.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
-			
-			// check if there is any life expectancy data from any year, get most recent
-			/*
-			 * EXTENSION: Add code to also get the year the data is from.
-			 * You may want to use a list of Floats as the  values for the HashMap
-			 * and store the year as the second value. (There are many other ways to do this)
-			 */
-			//
-			for(int i = columns.length - 1; i > 3; i--) {
-				
-				// check if value exists for year
-				if(!columns[i].equals("..")) {
-					lifeExpMap.put(columns[3], Float.parseFloat(columns[i]));
-					
-					// break once most recent data is found
-					break;
-				}
-			}
-			
-		}
-
-		return lifeExpMap;
-	}
-	
-	
-
+package parsing;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import de.fhpotsdam.unfolding.data.Feature;
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.data.ShapeFeature;
+import de.fhpotsdam.unfolding.geo.Location;
+import processing.core.PApplet;
+import processing.data.XML;
+
+public class ParseFeed {
+
+	// How the origin time appears in the summary of an Atom entry
+	private static final String SUMMARY_TIME_TAG = "<dt>Time</dt><dd>";
+	private static final DateTimeFormatter SUMMARY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long DAY = 24 * HOUR;
+	private static final long WEEK = 7 * DAY;
+
+
+	/*
+	 * This method is to parse a GeoRSS feed corresponding to earthquakes around
+	 * the globe.
+	 * 
+	 * Feeds whose name ends in .geojson or .json are read with
+	 * parseEarthquakeGeoJSON instead.
+	 * 
+	 * @param p - PApplet being used
+	 * @param fileName - file name or URL for data source
+	 */
+	public static List<PointFeature> parseEarthquake(PApplet p, String fileName) {
+		if (isGeoJSON(fileName)) {
+			return parseEarthquakeGeoJSON(p, fileName);
+		}
+		return parseEarthquakeAtom(p.loadXML(fileName));
+	}
+
+
+	/*
+	 * This method is to parse an earthquake feed from a stream, without a
+	 * sketch, e.g. in a server. The format is told by the name as above.
+	 * 
+	 * @param input - the feed, closed when done
+	 * @param fileName - file name or URL the feed came from
+	 */
+	public static List<PointFeature> parseEarthquake(InputStream input, String fileName) {
+		if (isGeoJSON(fileName)) {
+			return readGeoJSON(input, fileName);
+		}
+		try {
+			return parseEarthquakeAtom(new XML(input));
+		} catch (Exception e) {
+			throw new RuntimeException("Could not parse " + fileName, e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+	}
+
+
+	private static List<PointFeature> parseEarthquakeAtom(XML rss) {
+		List<PointFeature> features = new ArrayList<PointFeature>();
+
+		// Get all items
+		XML[] itemXML = rss.getChildren("entry");
+		PointFeature point;
+		
+		for (int i = 0; i < itemXML.length; i++) {
+			
+				// get location and create feature
+				Location location = getLocationFromPoint(itemXML[i]);
+				
+				// if successful create PointFeature and add to list
+				if( location != null) {
+					point = new PointFeature(location);
+					features.add(point);
+				}
+				else {
+					continue;
+				}
+
+				// Sets event id if existing
+				String idStr = getStringVal(itemXML[i], "id");
+				if (idStr != null) {
+					point.setId(idStr);
+				}
+
+				// Sets event time, taken from the summary or else the update time
+				long time = getTimeFromEntry(itemXML[i]);
+				if (time != Long.MIN_VALUE) {
+					point.putProperty("time", time);
+				}
+
+				// Sets title if existing
+				String titleStr = getStringVal(itemXML[i], "title");
+				if (titleStr != null) {
+					point.putProperty("title", titleStr);
+					// get magnitude from title
+					float magnitude = getMagnitudeFromTitle(titleStr);
+					if (Float.isNaN(magnitude)) {
+						// a quake marker cannot be drawn without a magnitude
+						features.remove(features.size() - 1);
+						continue;
+					}
+					point.putProperty("magnitude", magnitude);
+				}
+
+				// Sets depth(elevation) if existing
+				float depthVal = getFloatVal(itemXML[i], "georss:elev");
+				
+				// NOT SURE ABOUT CHECKING ERR CONDITION BECAUSE 0 COULD BE VALID?
+				// get one decimal place when converting to km
+				int interVal = (int)(depthVal/100);
+				depthVal = (float) interVal/10;
+				point.putProperty("depth", Math.abs((depthVal)));
+				
+
+				// Sets age if existing
+				XML[] catXML = itemXML[i].getChildren("category");
+				for (int c = 0; c < catXML.length; c++) {
+					String label = catXML[c].getString("label");
+					if ("Age".equals(label)) {
+						String ageStr = catXML[c].getString("term");
+						point.putProperty("age", ageStr);
+					}
+				}
+		
+
+			}
+		
+			return features;
+		}
+
+
+	/*
+	 * This method is to parse a USGS GeoJSON feed of earthquakes, streaming
+	 * the features so the whole document is never held in memory. The
+	 * features get the same properties and ids as those of the Atom feeds.
+	 * 
+	 * @param p - PApplet being used
+	 * @param fileName - file name or URL for data source
+	 */
+	public static List<PointFeature> parseEarthquakeGeoJSON(PApplet p, String fileName) {
+		InputStream input = p.createInput(fileName);
+		if (input == null) {
+			throw new RuntimeException("Could not open " + fileName);
+		}
+		return readGeoJSON(input, fileName);
+	}
+
+
+	private static List<PointFeature> readGeoJSON(InputStream input, String fileName) {
+		List<PointFeature> features = new ArrayList<PointFeature>();
+		GeoJSONQuakeReader reader = new GeoJSONQuakeReader(input);
+		try {
+			PointFeature point;
+			while ((point = reader.next()) != null) {
+				features.add(point);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not parse " + fileName, e);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+		return features;
+	}
+	
+	
+	/*
+	 * Gets the "age" property value of an event, the same buckets as the
+	 * "Age" category of the Atom feeds
+	 * 
+	 * @param elapsed - milliseconds from the event to the feed's generation time
+	 */
+	public static String getAge(long elapsed) {
+		if (elapsed < HOUR) {
+			return "Past Hour";
+		} else if (elapsed < DAY) {
+			return "Past Day";
+		} else if (elapsed < WEEK) {
+			return "Past Week";
+		}
+		return "Past Month";
+	}
+	
+	
+	/*
+	 * Tells whether a feed name or URL refers to a GeoJSON document,
+	 * ignoring any query string
+	 */
+	private static boolean isGeoJSON(String fileName) {
+		String name = fileName.toLowerCase();
+		int query = name.indexOf('?');
+		if (query >= 0) {
+			name = name.substring(0, query);
+		}
+		return name.endsWith(".geojson") || name.endsWith(".json");
+	}
+	
+	
+	/*
+	 * Gets the magnitude from a title such as "M 4.7 - 10km SSE of Town".
+	 * Older feeds write "M 4.7, Town" and the value may have any number of
+	 * digits, so it is read up to the next space or comma.
+	 * 
+	 * @return the magnitude, or NaN if the title has none
+	 */
+	private static float getMagnitudeFromTitle(String titleStr) {
+		int start = titleStr.indexOf("M ");
+		if (start < 0) {
+			return Float.NaN;
+		}
+		start += 2;
+		int end = start;
+		while (end < titleStr.length() && titleStr.charAt(end) != ' ' && titleStr.charAt(end) != ',') {
+			end++;
+		}
+		try {
+			return Float.parseFloat(titleStr.substring(start, end));
+		} catch (NumberFormatException e) {
+			return Float.NaN;
+		}
+	}
+	
+	
+	/*
+	 * Gets location from georss:point tag
+	 * 
+	 * @param XML Node which has point as child
+	 * 
+	 * @return Location object corresponding to point
+	 */
+	private static Location getLocationFromPoint(XML itemXML) {
+		// set loc to null in case of failure
+		Location loc = null;
+		XML pointXML = itemXML.getChild("georss:point");
+		
+		// set location if existing
+		if (pointXML != null && pointXML.getContent() != null) {
+			String pointStr = pointXML.getContent();
+			String[] latLon = pointStr.split(" ");
+			float lat = Float.valueOf(latLon[0]);
+			float lon = Float.valueOf(latLon[1]);
+
+			loc = new Location(lat, lon);
+		}
+		
+		return loc;
+	}	
+	
+	/*
+	 * Gets the event time in epoch milliseconds from an Atom entry. The
+	 * origin time is only given inside the HTML summary, as
+	 * "<dt>Time</dt><dd>2015-08-07 19:22:37 UTC</dd>"; entries without it
+	 * fall back to the <updated> timestamp.
+	 * 
+	 * @return the time, or Long.MIN_VALUE if the entry has none
+	 */
+	private static long getTimeFromEntry(XML itemXML) {
+		String summary = getStringVal(itemXML, "summary");
+		if (summary != null) {
+			int start = summary.indexOf(SUMMARY_TIME_TAG);
+			if (start >= 0) {
+				start += SUMMARY_TIME_TAG.length();
+				try {
+					String timeStr = summary.substring(start, start + 19);
+					return LocalDateTime.parse(timeStr, SUMMARY_TIME_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+				} catch (RuntimeException e) {
+					// fall through to the update time
+				}
+			}
+		}
+		String updated = getStringVal(itemXML, "updated");
+		if (updated != null) {
+			try {
+				return Instant.parse(updated).toEpochMilli();
+			} catch (RuntimeException e) {
+				// no usable time
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+	
+	/*
+	 * Get String content from child node.
+	 */
+	private static String getStringVal(XML itemXML, String tagName) {
+		// Sets title if existing
+		String str = null;
+		XML strXML = itemXML.getChild(tagName);
+		
+		// check if node exists and has content
+		if (strXML != null && strXML.getContent() != null) {
+			str = strXML.getContent();
+		}
+		
+		return str;
+	}
+	
+	/*
+	 * Get float value from child node
+	 */
+	private static float getFloatVal(XML itemXML, String tagName) {
+		return Float.parseFloat(getStringVal(itemXML, tagName));
+	}
+	
+
+	/*
+	 * This method is to parse a file containing airport information.  
+	 * The file and its format can be found: 
+	 * http://openflights.org/data.html#airport
+	 * 
+	 * It is also included with the UC San Diego MOOC package in the file airports.dat
+	 * 
+	 * @param p - PApplet being used
+	 * @param fileName - file name or URL for data source
+	 */
+	public static List<PointFeature> parseAirports(PApplet p, String fileName) {
+		List<PointFeature> features = new ArrayList<PointFeature>();
+
+		String[] rows = p.loadStrings(fileName);
+		for (String row : rows) {
+			
+			// hot-fix for altitude when lat lon out of place
+			int i = 0;
+			
+			// split row by commas not in quotations
+			String[] columns = row.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+			
+			// get location and create feature
+			//System.out.println(columns[6]);
+			float lat = Float.parseFloat(columns[6]);
+			float lon = Float.parseFloat(columns[7]);
+			
+			Location loc = new Location(lat, lon);
+			PointFeature point = new PointFeature(loc);
+			
+			// set ID to OpenFlights unique identifier
+			point.setId(columns[0]);
+			
+			// get other fields from csv
+			point.addProperty("name", columns[1]);
+			point.putProperty("city", columns[2]);
+			point.putProperty("country", columns[3]);
+			
+			// pretty sure IATA/FAA is used in routes.dat
+			// get airport IATA/FAA code
+			if(!columns[4].equals("")) {
+				point.putProperty("code", columns[4]);
+			}
+			// get airport ICAO code if no IATA
+			else if(!columns[5].equals("")) {
+				point.putProperty("code", columns[5]);
+			}
+			
+			point.putProperty("altitude", columns[8 + i]);
+			
+			features.add(point);
+		}
+
+		return features;
+		
+	}
+	
+	
+
+	/*
+	 * This method is to parse a file containing airport route information.  
+	 * The file and its format can be found: 
+	 * http://openflights.org/data.html#route
+	 * 
+	 * It is also included with the UC San Diego MOOC package in the file routes.dat
+	 * 
+	 * @param p - PApplet being used
+	 * @param fileName - file name or URL for data source
+	 */
+	public static List<ShapeFeature> parseRoutes(PApplet p, String fileName) {
+		List<ShapeFeature> routes = new ArrayList<ShapeFeature>();
+		
+		String[] rows = p.loadStrings(fileName);
+		
+		for(String row : rows) {
+			String[] columns = row.split(",");
+			
+			ShapeFeature route = new ShapeFeature(Feature.FeatureType.LINES);
+			
+			// set id to be OpenFlights identifier for source airport
+			
+			// check that both airports on route have OpenFlights Identifier
+			if(!columns[3].equals("\\N") && !columns[5].equals("\\N")){
+				// set "source" property to be OpenFlights identifier for source airport
+				route.putProperty("source", columns[3]);
+				// "destination property" -- OpenFlights identifier
+				route.putProperty("destination", columns[5]);
+				
+				routes.add(route);
+			}
+		}
+			
+		
+		return routes;
+		
+		
+		
+	}
+	
+	
+
+	/*
+	 * This method is to parse a file containing life expectancy information from
+	 * the world bank.  
+	 * The file and its format can be found: 
+	 * http://data.worldbank.org/indicator/SP.DYN.LE00.IN
+	 * 
+	 * It is also included with the UC San Diego MOOC package 
+	 * in the file LifeExpectancyWorldBank.csv
+	 * 
+	 * @param p - PApplet being used
+	 * @param fileName - file name or URL for data source
+	 * @return A HashMap of country->average age of death
+	 */
+	public static HashMap<String, Float> loadLifeExpectancyFromCSV(PApplet p, String fileName) {
+		// HashMap key: country ID and  data: lifeExp at birth
+		HashMap<String, Float> lifeExpMap = new HashMap<String, Float>();
+
+		// stream the csv file row by row
+		BufferedReader input = p.createReader(fileName);
+		if (input == null) {
+			return lifeExpMap;
+		}
+		DelimitedReader csv = new DelimitedReader(input, ',');
+		
+		try {
+			// Reads country ID and life expectancy values from CSV row;
+			// quoted fields may contain commas
+			while (csv.nextRow()) {
+				
+				// check if there is any life expectancy data from any year, get most recent
+				/*
+				 * EXTENSION: Add code to also get the year the data is from.
+				 * You may want to use a list of Floats as the  values for the HashMap
+				 * and store the year as the second value. (There are many other ways to do this)
+				 */
+				//
+				for(int i = csv.size() - 1; i > 3; i--) {
+					
+					// check if value exists for year
+					if(!csv.equals(i, "..") && !csv.isEmpty(i)) {
+						try {
+							lifeExpMap.put(csv.get(3), csv.getFloat(i));
+						} catch (NumberFormatException e) {
+							// header row
+						}
+						
+						// break once most recent data is found
+						break;
+					}
+				}
+				
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + fileName, e);
+		} finally {
+			try {
+				csv.close();
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+
+		return lifeExpMap;
+	}
+	
+	
+
 }
\ No newline at end of file
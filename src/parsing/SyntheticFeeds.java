@@ -0,0 +1,369 @@
+package parsing;
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Deterministic generator of synthetic earthquake feeds and city files, for
+ * load and soak testing at sizes the real feeds never reach.
+ *
+ * Quakes are spread uniformly over the sphere or clustered along a coarse
+ * trace of the major plate boundaries, with Gutenberg-Richter magnitudes and
+ * mostly shallow depths. They are written as USGS style Atom or GeoJSON
+ * feeds that ParseFeed reads like the real ones. Cities are written in the
+ * format of city-data.json. The same seed and parameters always give the
+ * same files.
+ *
+ * Run as a program to write a set of files:
+ *
+ *   java parsing.SyntheticFeeds [--quakes 50000] [--cities 5000] [--days 7]
+ *       [--distribution plates|uniform] [--seed 1] [--now 2015-08-07T20:54:48Z]
+ *       [--out data/synthetic]
+ */
+public class SyntheticFeeds {
+
+	public static final int UNIFORM = 0;
+	public static final int PLATE_BOUNDARIES = 1;
+
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long DAY = 24 * HOUR;
+
+	private static final double MIN_MAGNITUDE = 2.5;
+	private static final double MAX_MAGNITUDE = 9.0;
+
+	// Spread of the quakes and cities around their boundary point or center, in degrees
+	private static final double BOUNDARY_SPREAD = 1.5;
+	private static final double CITY_SPREAD = 2;
+
+	private static final DateTimeFormatter SUMMARY_TIME_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	/*
+	 * Coarse traces of the major plate boundaries as {lat, lon, lat, lon, ...}:
+	 * the Pacific rim from New Zealand to Chile, the Sunda arc, the
+	 * Alpine-Himalayan belt and the mid-ocean ridges.
+	 */
+	private static final double[][] PLATE_BOUNDARIES_TRACE = {
+		{-45, 167, -38, 178, -30, -177, -20, -174, -15, -173},
+		{-20, 169, -15, 167, -10, 161, -6, 152, -4, 145},
+		{-4, 145, -6, 130, -9, 120, -9, 112, -7, 105, -3, 100, 2, 96, 7, 94, 14, 93, 20, 94},
+		{-2, 128, 5, 127, 12, 126, 18, 122, 24, 122, 30, 131, 34, 137, 36, 141, 41, 143,
+			45, 148, 50, 157, 55, 162},
+		{55, 162, 52, 170, 51, 180, 51, -175, 52, -170, 54, -160, 57, -154, 60, -147},
+		{60, -147, 58, -137, 54, -133, 48, -127, 44, -125, 40, -124, 36, -121, 32, -116,
+			27, -111, 22, -106, 17, -101, 15, -94, 13, -90, 11, -87, 9, -84, 7, -78},
+		{7, -78, 2, -79, -3, -81, -10, -78, -16, -74, -20, -71, -27, -71, -33, -72,
+			-40, -74, -46, -76, -52, -75},
+		{36, -10, 37, 0, 38, 13, 40, 20, 38, 27, 39, 35, 37, 45, 34, 50, 30, 55, 28, 60,
+			32, 66, 35, 72, 32, 77, 29, 82, 28, 88, 27, 93, 25, 96, 20, 94},
+		{66, -18, 60, -29, 52, -30, 45, -28, 38, -28, 30, -42, 20, -46, 10, -40, 0, -20,
+			-10, -13, -20, -13, -30, -14, -40, -17, -50, -10},
+		{23, -108, 15, -105, 5, -103, -5, -106, -15, -112, -25, -115, -35, -110, -45, -113,
+			-55, -120},
+		{12, 45, 13, 50, 8, 58, 0, 67, -10, 67, -20, 68, -30, 75, -40, 80, -45, 100,
+			-50, 120, -55, 140}
+	};
+
+	/*
+	 * One generated quake.
+	 */
+	public static class Quake {
+		public final String code;
+		public final long time;
+		public final double lat;
+		public final double lon;
+		public final double magnitude;
+		public final double depth;
+
+		public Quake(String code, long time, double lat, double lon, double magnitude, double depth) {
+			this.code = code;
+			this.time = time;
+			this.lat = lat;
+			this.lon = lon;
+			this.magnitude = magnitude;
+			this.depth = depth;
+		}
+	}
+
+	private final long seed;
+
+	// Boundary segments as {lat0, lon0, lat1, lon1} and their cumulative lengths
+	private final List<double[]> segments = new ArrayList<double[]>();
+	private final double[] cumulativeLength;
+
+	public SyntheticFeeds(long seed) {
+		this.seed = seed;
+		for (double[] trace : PLATE_BOUNDARIES_TRACE) {
+			for (int k = 0; k + 3 < trace.length; k += 2) {
+				segments.add(new double[] {trace[k], trace[k + 1], trace[k + 2], trace[k + 3]});
+			}
+		}
+		cumulativeLength = new double[segments.size()];
+		double total = 0;
+		for (int s = 0; s < segments.size(); s++) {
+			double[] segment = segments.get(s);
+			total += Math.hypot(segment[2] - segment[0], lonDelta(segment[1], segment[3]));
+			cumulativeLength[s] = total;
+		}
+	}
+
+	/*
+	 * Generates the quakes of a time range. Quakes are numbered from the
+	 * first hour of the epoch, so consecutive or overlapping ranges agree on
+	 * the quakes of the hours they share.
+	 *
+	 * @param from - start of the range, epoch ms, inclusive
+	 * @param to - end of the range, epoch ms, exclusive
+	 * @param quakesPerDay - average number of quakes per day
+	 * @param distribution - UNIFORM or PLATE_BOUNDARIES
+	 * @return the quakes, oldest first
+	 */
+	public List<Quake> generateQuakes(long from, long to, double quakesPerDay, int distribution) {
+		List<Quake> quakes = new ArrayList<Quake>();
+		double perHour = quakesPerDay / 24;
+		for (long hour = Math.floorDiv(from, HOUR); hour * HOUR < to; hour++) {
+			// every hour has its own stream, so it does not depend on the range
+			Random random = new Random(mix(seed * 0x9E3779B97F4A7C15L + hour));
+			int count = poisson(random, perHour);
+			for (int i = 0; i < count; i++) {
+				// whole seconds, as that is all the Atom feeds carry
+				long time = hour * HOUR + random.nextInt(3600) * 1000L;
+				double[] position = distribution == PLATE_BOUNDARIES ? nearBoundary(random) : uniform(random);
+				double magnitude = gutenbergRichter(random);
+				double depth = depth(random);
+				if (time >= from && time < to) {
+					String code = hour + "n" + i;
+					quakes.add(new Quake(code, time, position[0], position[1], magnitude, depth));
+				}
+			}
+		}
+		Collections.sort(quakes, new Comparator<Quake>() {
+			public int compare(Quake a, Quake b) {
+				return a.time < b.time ? -1 : (a.time > b.time ? 1 : 0);
+			}
+		});
+		return quakes;
+	}
+
+	/*
+	 * Writes the quakes as a USGS Atom feed generated at the given time.
+	 */
+	public static void writeAtom(List<Quake> quakes, long generated, Writer out) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<feed xmlns=\"http://www.w3.org/2005/Atom\" xmlns:georss=\"http://www.georss.org/georss\">");
+		out.write("<title>Synthetic earthquakes</title><updated>" + Instant.ofEpochMilli(generated) + "</updated>\n");
+		for (int i = quakes.size() - 1; i >= 0; i--) {
+			Quake quake = quakes.get(i);
+			out.write("<entry><id>urn:earthquake-usgs-gov:sy:" + quake.code + "</id>");
+			out.write("<title>" + title(quake) + "</title>");
+			out.write("<updated>" + Instant.ofEpochMilli(quake.time) + "</updated>");
+			out.write("<summary type=\"html\"><![CDATA[<dl><dt>Time</dt><dd>"
+					+ SUMMARY_TIME_FORMAT.format(Instant.ofEpochMilli(quake.time)) + " UTC</dd></dl>]]></summary>");
+			out.write("<georss:point>" + format(quake.lat, 4) + " " + format(quake.lon, 4) + "</georss:point>");
+			out.write("<georss:elev>" + (-Math.round(quake.depth * 1000)) + "</georss:elev>");
+			out.write("<category label=\"Age\" term=\"" + ParseFeed.getAge(generated - quake.time) + "\"/>");
+			out.write("<category label=\"Magnitude\" term=\"Magnitude " + (int)quake.magnitude + "\"/></entry>\n");
+		}
+		out.write("</feed>\n");
+	}
+
+	/*
+	 * Writes the quakes as a USGS GeoJSON feed generated at the given time.
+	 */
+	public static void writeGeoJSON(List<Quake> quakes, long generated, Writer out) throws IOException {
+		out.write("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":" + generated
+				+ ",\"title\":\"Synthetic earthquakes\",\"count\":" + quakes.size() + "},\"features\":[\n");
+		for (int i = quakes.size() - 1; i >= 0; i--) {
+			Quake quake = quakes.get(i);
+			out.write("{\"type\":\"Feature\",\"properties\":{\"mag\":" + format(quake.magnitude, 1)
+					+ ",\"time\":" + quake.time + ",\"title\":\"" + title(quake)
+					+ "\",\"net\":\"sy\",\"code\":\"" + quake.code + "\"},");
+			out.write("\"geometry\":{\"type\":\"Point\",\"coordinates\":[" + format(quake.lon, 4) + ","
+					+ format(quake.lat, 4) + "," + format(quake.depth, 2) + "]},\"id\":\"sy" + quake.code + "\"}");
+			out.write(i > 0 ? ",\n" : "\n");
+		}
+		out.write("]}\n");
+	}
+
+	/*
+	 * Writes cities in the format of city-data.json, in clusters around
+	 * random centers, with Zipf distributed populations in millions.
+	 */
+	public void writeCities(int count, Writer out) throws IOException {
+		Random random = new Random(seed ^ 0x5DEECE66DL);
+		int clusters = Math.max(1, count / 50);
+		double[][] centers = new double[clusters][];
+		for (int c = 0; c < clusters; c++) {
+			centers[c] = new double[] {-50 + random.nextDouble() * 110, -180 + random.nextDouble() * 360};
+		}
+		out.write("{\"type\":\"FeatureCollection\",\"features\":[\n");
+		for (int i = 0; i < count; i++) {
+			int c = random.nextInt(clusters);
+			double lat = clampLat(centers[c][0] + random.nextGaussian() * CITY_SPREAD);
+			double lon = wrapLon(centers[c][1] + random.nextGaussian() * CITY_SPREAD);
+			double population = Math.min(40, 0.05 / Math.max(1e-3, 1 - random.nextDouble()));
+			out.write("{\"type\":\"Feature\",\"properties\":{\"name\":\"City " + i + "\", \"population\":\""
+					+ format(population, 3) + "\", \"country\" : \"Region " + c + "\", \"coastal\" : \""
+					+ (random.nextInt(4) == 0) + "\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":["
+					+ format(lon, 4) + ", " + format(lat, 4) + "]}}");
+			out.write(i + 1 < count ? ",\n" : "\n");
+		}
+		out.write("]}\n");
+	}
+
+	public static void main(String[] args) throws IOException {
+		int quakes = 50000;
+		int cities = 5000;
+		int days = 7;
+		int distribution = PLATE_BOUNDARIES;
+		long seed = 1;
+		long now = Instant.parse("2015-08-07T20:54:48Z").toEpochMilli();
+		File out = new File("data/synthetic");
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("--quakes")) {
+				quakes = Integer.parseInt(value);
+			} else if (args[i].equals("--cities")) {
+				cities = Integer.parseInt(value);
+			} else if (args[i].equals("--days")) {
+				days = Integer.parseInt(value);
+			} else if (args[i].equals("--distribution")) {
+				distribution = value.equals("uniform") ? UNIFORM : PLATE_BOUNDARIES;
+			} else if (args[i].equals("--seed")) {
+				seed = Long.parseLong(value);
+			} else if (args[i].equals("--now")) {
+				now = Instant.parse(value).toEpochMilli();
+			} else if (args[i].equals("--out")) {
+				out = new File(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		out.mkdirs();
+		SyntheticFeeds generator = new SyntheticFeeds(seed);
+		List<Quake> generated = generator.generateQuakes(now - days * DAY, now, (double)quakes / days, distribution);
+		Writer writer = open(new File(out, "quakes.atom"));
+		try {
+			writeAtom(generated, now, writer);
+		} finally {
+			writer.close();
+		}
+		writer = open(new File(out, "quakes.geojson"));
+		try {
+			writeGeoJSON(generated, now, writer);
+		} finally {
+			writer.close();
+		}
+		writer = open(new File(out, "cities.json"));
+		try {
+			generator.writeCities(cities, writer);
+		} finally {
+			writer.close();
+		}
+		System.out.println("Wrote " + generated.size() + " quakes and " + cities + " cities to " + out);
+	}
+
+	/* Opens a buffered UTF-8 writer on a file */
+	public static Writer open(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/*
+	 * A point near a plate boundary: a segment picked by length, a uniform
+	 * position along it and a Gaussian offset.
+	 */
+	private double[] nearBoundary(Random random) {
+		double target = random.nextDouble() * cumulativeLength[cumulativeLength.length - 1];
+		int s = 0;
+		while (cumulativeLength[s] < target) {
+			s++;
+		}
+		double[] segment = segments.get(s);
+		double t = random.nextDouble();
+		double lat = segment[0] + t * (segment[2] - segment[0]) + random.nextGaussian() * BOUNDARY_SPREAD;
+		double lon = segment[1] + t * lonDelta(segment[1], segment[3]) + random.nextGaussian() * BOUNDARY_SPREAD;
+		return new double[] {clampLat(lat), wrapLon(lon)};
+	}
+
+	/* A point uniformly distributed over the sphere */
+	private static double[] uniform(Random random) {
+		double lat = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+		double lon = -180 + random.nextDouble() * 360;
+		return new double[] {lat, lon};
+	}
+
+	/* Gutenberg-Richter magnitudes with b = 1, to one decimal */
+	private static double gutenbergRichter(Random random) {
+		double magnitude = MIN_MAGNITUDE - Math.log10(1 - random.nextDouble());
+		return Math.round(Math.min(magnitude, MAX_MAGNITUDE) * 10) / 10.0;
+	}
+
+	/* Mostly shallow depths in km, with a tail of deep quakes */
+	private static double depth(Random random) {
+		double depth = random.nextInt(10) == 0 ? 70 + random.nextDouble() * 600 : -Math.log(1 - random.nextDouble()) * 20;
+		return Math.round(Math.min(depth, 700) * 100) / 100.0;
+	}
+
+	/* Poisson distributed count, by Knuth's method for small means */
+	private static int poisson(Random random, double mean) {
+		if (mean > 30) {
+			return Math.max(0, (int)Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+		}
+		double limit = Math.exp(-mean);
+		double product = random.nextDouble();
+		int count = 0;
+		while (product > limit) {
+			product *= random.nextDouble();
+			count++;
+		}
+		return count;
+	}
+
+	private static String title(Quake quake) {
+		return "M " + format(quake.magnitude, 1) + " - Synthetic quake near " + format(quake.lat, 2) + ", "
+				+ format(quake.lon, 2);
+	}
+
+	/*
+	 * Scrambles a seed, as java.util.Random starts nearly the same for
+	 * seeds that differ by little, such as consecutive hours.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/* The shorter way from lon0 to lon1 across the antimeridian */
+	private static double lonDelta(double lon0, double lon1) {
+		double delta = lon1 - lon0;
+		return delta > 180 ? delta - 360 : (delta < -180 ? delta + 360 : delta);
+	}
+
+	private static double wrapLon(double lon) {
+		return lon >= 180 ? lon - 360 : (lon < -180 ? lon + 360 : lon);
+	}
+
+	private static double clampLat(double lat) {
+		return Math.max(-85, Math.min(85, lat));
+	}
+
+	private static String format(double value, int decimals) {
+		return String.format(Locale.ROOT, "%." + decimals + "f", value);
+	}
+}